@@ -14,10 +14,18 @@ package com.github.gasrios.raw.data;
 
 import java.io.IOException;
 import java.nio.ByteOrder;
-import java.util.List;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
 
 import com.github.gasrios.raw.io.TiffInputStream;
+import com.github.gasrios.raw.lang.ArrayPool;
 import com.github.gasrios.raw.lang.TiffProcessorException;
 import com.github.gasrios.raw.lang.TiffProcessorRuntimeException;
 
@@ -31,8 +39,128 @@ public final class ImageFileDirectory extends TreeMap<Tag, Object> {
 
 	private ImageFileDirectory next;
 
+	// Key of the entry ImageFileDirectoryCache.store() is to write this tree to, if not written yet.
+	String cacheKey = null;
+
+	// See getOffset()
+	private final Map<Tag, Object> offsets = new TreeMap<Tag, Object>();
+
 	public ImageFileDirectory(TiffInputStream in) { this.in = in; }
 
+	// See ImageFileDirectoryLoader.load(Executor): IFDs read from forks of a stream are handed over to the stream itself.
+	void attach(TiffInputStream in) { this.in = in; }
+
+	/*
+	 * Values of tags pointing to other IFDs, of XMP and of large opaque tags are only loaded when first asked for. See
+	 * com.github.gasrios.raw.data.ImageFileDirectoryLoader.POINTERS and PAYLOADS. Until then, the map holds placeholders, which
+	 * never get out of this class: get() loads the value it is asked for, and every other method that hands out values
+	 * (entrySet(), values(), navigation and views, toString(), equals()...) loads all of them first. Keys alone (keySet(),
+	 * containsKey()) load nothing.
+	 *
+	 * Loading a value reads from the file, so these methods may throw com.github.gasrios.raw.lang.TiffProcessorRuntimeException,
+	 * wrapping the java.io.IOException or com.github.gasrios.raw.lang.TiffProcessorException that got in the way.
+	 *
+	 * get() and put() lock this IFD, so threads sharing it can ask for values as they please; loading locks the stream too. As
+	 * with any java.util.TreeMap, views must not be iterated while other threads change the map.
+	 */
+	@Override public synchronized Object get(Object key) {
+		Object value = super.get(key);
+		if (value instanceof ImageFileDirectoryLoader.Pending) super.put((Tag) key, value = ((ImageFileDirectoryLoader.Pending) value).load());
+		return value;
+	}
+
+	@Override public synchronized Object put(Tag key, Object value) { return super.put(key, value); }
+
+	@Override public synchronized Object remove(Object key) {
+		get(key);
+		return super.remove(key);
+	}
+
+	@Override public synchronized boolean containsValue(Object value) { loadAll(); return super.containsValue(value); }
+
+	@Override public Set<Map.Entry<Tag, Object>> entrySet() { loadAll(); return super.entrySet(); }
+
+	@Override public Collection<Object> values() { loadAll(); return super.values(); }
+
+	@Override public Map.Entry<Tag, Object> firstEntry() { loadAll(); return super.firstEntry(); }
+
+	@Override public Map.Entry<Tag, Object> lastEntry() { loadAll(); return super.lastEntry(); }
+
+	@Override public Map.Entry<Tag, Object> pollFirstEntry() { loadAll(); return super.pollFirstEntry(); }
+
+	@Override public Map.Entry<Tag, Object> pollLastEntry() { loadAll(); return super.pollLastEntry(); }
+
+	@Override public Map.Entry<Tag, Object> lowerEntry(Tag key) { loadAll(); return super.lowerEntry(key); }
+
+	@Override public Map.Entry<Tag, Object> floorEntry(Tag key) { loadAll(); return super.floorEntry(key); }
+
+	@Override public Map.Entry<Tag, Object> ceilingEntry(Tag key) { loadAll(); return super.ceilingEntry(key); }
+
+	@Override public Map.Entry<Tag, Object> higherEntry(Tag key) { loadAll(); return super.higherEntry(key); }
+
+	@Override public NavigableMap<Tag, Object> descendingMap() { loadAll(); return super.descendingMap(); }
+
+	@Override public NavigableMap<Tag, Object> subMap(Tag fromKey, boolean fromInclusive, Tag toKey, boolean toInclusive) {
+		loadAll();
+		return super.subMap(fromKey, fromInclusive, toKey, toInclusive);
+	}
+
+	@Override public NavigableMap<Tag, Object> headMap(Tag toKey, boolean inclusive) { loadAll(); return super.headMap(toKey, inclusive); }
+
+	@Override public NavigableMap<Tag, Object> tailMap(Tag fromKey, boolean inclusive) { loadAll(); return super.tailMap(fromKey, inclusive); }
+
+	@Override public SortedMap<Tag, Object> subMap(Tag fromKey, Tag toKey) { loadAll(); return super.subMap(fromKey, toKey); }
+
+	@Override public SortedMap<Tag, Object> headMap(Tag toKey) { loadAll(); return super.headMap(toKey); }
+
+	@Override public SortedMap<Tag, Object> tailMap(Tag fromKey) { loadAll(); return super.tailMap(fromKey); }
+
+	@Override public synchronized Object replace(Tag key, Object value) {
+		get(key);
+		return super.replace(key, value);
+	}
+
+	@Override public synchronized boolean replace(Tag key, Object oldValue, Object newValue) {
+		get(key);
+		return super.replace(key, oldValue, newValue);
+	}
+
+	@Override public void forEach(BiConsumer<? super Tag, ? super Object> action) { loadAll(); super.forEach(action); }
+
+	@Override public void replaceAll(BiFunction<? super Tag, ? super Object, ? extends Object> function) { loadAll(); super.replaceAll(function); }
+
+	// Loads every value. equals(), hashCode(), toString() and clone() go through entrySet(), so they need nothing else.
+	private synchronized void loadAll() {
+		for (Map.Entry<Tag, Object> entry: super.entrySet())
+			if (entry.getValue() instanceof ImageFileDirectoryLoader.Pending) entry.setValue(((ImageFileDirectoryLoader.Pending) entry.getValue()).load());
+	}
+
+	/*
+	 * See ImageFileDirectoryLoader.load(Executor): placeholders of IFDs read from forks of a stream are handed over to the
+	 * loader of the stream itself.
+	 */
+	synchronized void rebind(UnaryOperator<ImageFileDirectoryLoader.Pending> rebind) {
+		for (Map.Entry<Tag, Object> entry: super.entrySet())
+			if (entry.getValue() instanceof ImageFileDirectoryLoader.Pending) entry.setValue(rebind.apply((ImageFileDirectoryLoader.Pending) entry.getValue()));
+	}
+
+	void pending(Tag tag, ImageFileDirectoryLoader.Pending pending) {
+		offsets.put(tag, pending.value);
+		put(tag, pending);
+	}
+
+	// A tag in ImageFileDirectoryLoader.POINTERS whose value is already known. See ImageFileDirectoryCache.
+	void loaded(Tag tag, Object offset, Object value) {
+		offsets.put(tag, offset);
+		put(tag, value);
+	}
+
+	// Whether get() may be called for tag without reading anything from the file.
+	public synchronized boolean isLoaded(Tag tag) { return !(super.get(tag) instanceof ImageFileDirectoryLoader.Pending); }
+
+	// Value of a tag in ImageFileDirectoryLoader.POINTERS as stored in the file: offsets, or raw XMP data.
+	public Object getOffset(Tag tag) { return offsets.get(tag); }
+
 	public ImageFileDirectory getNext() { return next; }
 	public void setNext(ImageFileDirectory next) { this.next = next; }
 
@@ -49,28 +177,75 @@ public final class ImageFileDirectory extends TreeMap<Tag, Object> {
 		return getImagePartAsShortArray(stripNumber, Tag.StripOffsets, Tag.StripByteCounts);
 	}
 
+	/*
+	 * Bytes of a strip, or tile, read into an array taken from pool. Arrays may be longer than the part they hold (see
+	 * getStripByteCount() and getTileByteCount()) and should be released back to pool once done with.
+	 *
+	 * Half the memory getStripAsShortArray() and getTileAsShortArray() need, and nothing left for the garbage collector.
+	 */
+	public byte[] getStrip(int stripNumber, ArrayPool pool) throws TiffProcessorException {
+		return getImagePart(stripNumber, Tag.StripOffsets, Tag.StripByteCounts, pool);
+	}
+
+	public byte[] getTile(int tileNumber, ArrayPool pool) throws TiffProcessorException {
+		return getImagePart(tileNumber, Tag.TileOffsets, Tag.TileByteCounts, pool);
+	}
+
+	public long getStripByteCount(int stripNumber) { return element(get(Tag.StripByteCounts), stripNumber); }
+
+	public long getTileByteCount(int tileNumber) { return element(get(Tag.TileByteCounts), tileNumber); }
+
+	/*
+	 * Throws com.github.gasrios.raw.lang.TiffProcessorCancelledException if processing of the file this IFD was read from has
+	 * been cancelled. Reading strips and tiles checks it too.
+	 */
+	public void checkCancelled() throws TiffProcessorException { in.getCancellationToken().check(); }
+
+	// Number of strips, or tiles, the image is stored in. See TIFF 6.0 Specification, pages 39 and 67.
+	public int getImagePartCount() {
+		Object offsets = containsKey(Tag.TileOffsets)? get(Tag.TileOffsets) : get(Tag.StripOffsets);
+		if (offsets instanceof long[]) return ((long[]) offsets).length;
+		if (offsets instanceof int[]) return ((int[]) offsets).length;
+		return offsets == null? 0 : 1;
+	}
+
+	// Offset and size of a part, strip or tile depending on how the image is stored. See getImagePartCount().
+	long getImagePartOffset(int number) { return element(get(containsKey(Tag.TileOffsets)? Tag.TileOffsets : Tag.StripOffsets), number); }
+
+	long getImagePartByteCount(int number) { return element(get(containsKey(Tag.TileOffsets)? Tag.TileByteCounts : Tag.StripByteCounts), number); }
+
+	// Reads parts stored one right after the other, starting at offset, seeking only once. See ImagePartReader.
+	void readContiguous(long offset, byte[][] parts, int[] lengths) throws IOException {
+		synchronized (in) {
+			in.seek(offset);
+			for (int i = 0; i < parts.length; i++) in.readFully(parts[i], lengths[i]);
+		}
+	}
+
+	// StripOffsets, StripByteCounts and their tile counterparts are SHORT or LONG, and hold an array unless there is one part.
+	private static long element(Object value, int number) {
+		if (value instanceof long[]) return ((long[]) value)[number];
+		if (value instanceof int[]) return ((int[]) value)[number];
+		if (value instanceof Integer) return (int) value;
+		return (long) value;
+	}
+
 	// TODO Validations (is image stored in this tag? Is number valid? Does this IFD has an image at all?)
 	private short[] getImagePartAsShortArray(int number, Tag offsets, Tag byteCounts) throws TiffProcessorException {
 
+		checkCancelled();
+
 		try {
 
-			long offset;
-			long byteCount;
+			long offset = element(get(offsets), number);
+			int byteCount = byteCount(byteCounts, number);
 
-			if (get(offsets) instanceof List) {
-				offset = ((long[]) get(offsets))[number];
-				byteCount = ((long[]) get(byteCounts))[number];
-			} else {
-				offset = (long) get(offsets);
-				byteCount = (long) get(byteCounts);
+			short[] array = new short[byteCount];
+			// Several threads may be reading parts of the same file.
+			synchronized (in) {
+				in.seek(offset);
+				in.read(array);
 			}
-
-			if (byteCount > 0xFFFFFFFFL)
-				throw new TiffProcessorException("java arrays do not support lengths out of the positive integer range: " + byteCount);
-
-			short[] array = new short[(int) byteCount];
-			in.seek(offset);
-			in.read(array);
 			return array;
 
 		} catch (IOException e) {
@@ -81,4 +256,32 @@ public final class ImageFileDirectory extends TreeMap<Tag, Object> {
 
 	}
 
+	private byte[] getImagePart(int number, Tag offsets, Tag byteCounts, ArrayPool pool) throws TiffProcessorException {
+
+		checkCancelled();
+
+		long offset = element(get(offsets), number);
+		int byteCount = byteCount(byteCounts, number);
+
+		byte[] array = pool.bytes(byteCount);
+		try {
+			synchronized (in) {
+				in.seek(offset);
+				in.readFully(array, byteCount);
+			}
+			return array;
+		} catch (IOException e) {
+			pool.release(array);
+			throw new TiffProcessorRuntimeException(e);
+		}
+
+	}
+
+	private int byteCount(Tag byteCounts, int number) throws TiffProcessorException {
+		long byteCount = element(get(byteCounts), number);
+		if (byteCount > Integer.MAX_VALUE)
+			throw new TiffProcessorException("java arrays do not support lengths out of the positive integer range: " + byteCount);
+		return (int) byteCount;
+	}
+
 }
\ No newline at end of file
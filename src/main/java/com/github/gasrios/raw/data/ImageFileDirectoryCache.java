@@ -0,0 +1,511 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.github.gasrios.raw.io.TiffInputStream;
+import com.github.gasrios.raw.lang.Buffers;
+import com.github.gasrios.raw.lang.RATIONAL;
+import com.github.gasrios.raw.lang.RationalArray;
+import com.github.gasrios.raw.lang.SRATIONAL;
+import com.github.gasrios.raw.lang.TiffProcessorException;
+import com.github.gasrios.raw.lang.TiffProcessorRuntimeException;
+import com.github.gasrios.xmp.XMPException;
+
+/*
+ * IFD trees kept on disk, so files seen before are not parsed again. Catalogs and batch runs go over the same files many times,
+ * and for most of them parsing, seeking all over the file to follow offsets, takes longer than whatever is done with the tree.
+ *
+ * Each tree is kept in its own file in a directory, in a compact binary form read back through a memory mapped buffer. Trees
+ * are keyed by the absolute path, size and last modified time of the files they come from, so files that change are parsed
+ * again. Once entries take more than a given number of bytes, those least recently used are deleted. The directory is only
+ * listed for that when the cache is created and when entries written since seem to take it over budget, so entries written by
+ * other processes are only accounted for then.
+ *
+ * Trees read from the cache are attached to the stream given: strips, tiles and payloads (see
+ * ImageFileDirectoryLoader.PAYLOADS) are read from it as usual, but nothing else is, besides its header. XMP packets are kept
+ * as they were, and parsed when first asked for. See com.github.gasrios.raw.data.XmpProperties.
+ *
+ * Trees of files first seen are not cached by load() but by store(), once processed, with whatever IFDs pointed to by other
+ * IFDs (see ImageFileDirectoryLoader.POINTERS) were loaded by then. The rest are cached as offsets, and read from the file
+ * when first asked for, as usual, so processors skipping MakerNote IFDs, for example, never have them read. Trees with IFDs
+ * that cannot be read are not cached, and neither are entries that cannot be read back, which are deleted.
+ *
+ * Several processes may share a directory: entries are written elsewhere, then moved in place.
+ */
+
+public final class ImageFileDirectoryCache {
+
+	private final Path directory;
+	private final long maxBytes;
+
+	// Bytes taken by entries when the directory was last listed, plus those of entries written since. Guarded by this.
+	private long total;
+
+	public ImageFileDirectoryCache(Path directory, long maxBytes) throws IOException {
+		if (maxBytes < 0) throw new IllegalArgumentException("Cache size must not be negative: " + maxBytes);
+		this.directory = Files.createDirectories(directory);
+		this.maxBytes = maxBytes;
+		total = size();
+	}
+
+	/*
+	 * The tree of file, which in reads. Taken from the cache if there, parsed otherwise, to be cached by store(): in full by
+	 * tasks given to executor (see ImageFileDirectoryLoader.load(Executor)), or, if executor is null, the first IFD and its
+	 * chain only, leaving the rest to be loaded when first asked for.
+	 */
+	public ImageFileDirectory load(Path file, TiffInputStream in, Executor executor)
+			throws TiffProcessorException, IOException, XMPException, InterruptedException {
+		String key = key(file);
+		ImageFileDirectory ifd = read(directory.resolve(name(key)), key, in);
+		if (ifd == null) {
+			ImageFileDirectoryLoader loader = new ImageFileDirectoryLoader(in);
+			(ifd = executor == null? loader.load() : loader.load(executor)).cacheKey = key;
+		}
+		return ifd;
+	}
+
+	/*
+	 * Caches a tree load() did not find, as loaded so far. Trees taken from the cache, or already stored, are left alone, so
+	 * entries hold what the first processor to see each file needed.
+	 */
+	public void store(ImageFileDirectory ifd) throws IOException {
+		String key = ifd.cacheKey;
+		if (key == null) return;
+		ifd.cacheKey = null;
+		write(directory.resolve(name(key)), key, ifd);
+	}
+
+	// Total size of all entries.
+	public long size() throws IOException {
+		long size = 0;
+		for (Path entry: entries()) size += Files.size(entry);
+		return size;
+	}
+
+	public synchronized void clear() throws IOException {
+		for (Path entry: entries()) Files.deleteIfExists(entry);
+		total = 0;
+	}
+
+	private static final String SUFFIX = ".ifd";
+
+	private static String key(Path file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		return file.toAbsolutePath().normalize() + "\n" + attributes.size() + "\n" + attributes.lastModifiedTime().toMillis();
+	}
+
+	private static String name(String key) {
+		try {
+			StringBuilder name = new StringBuilder();
+			for (byte b: MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)))
+				name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return name.append(SUFFIX).toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform implements SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private List<Path> entries() throws IOException {
+		try (Stream<Path> paths = Files.list(directory)) {
+			return paths.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+		}
+	}
+
+	/*
+	 * Entries are:
+	 *
+	 * - MAGIC, VERSION and the key, which tells entries apart should names of two keys ever clash;
+	 * - IFDs, each made of the number of entries, then tag scope, tag number, kind and value(s) of each entry, and finally
+	 *   whether a next IFD follows it.
+	 *
+	 * Values are a type code followed by the value itself. All numbers are big endian.
+	 */
+
+	private static final int MAGIC = 0x52415749, VERSION = 1;
+
+	// Tag scopes.
+	private static final byte MAIN = 0, INTEROPERABILITY = 1, MAKERNOTE = 2;
+
+	// Entry kinds: values, values still to be loaded (see ImageFileDirectory.pending()), and offsets followed by loaded IFDs.
+	private static final byte VALUE = 0, PENDING = 1, POINTER = 2;
+
+	// Value types. IFD and IFD_LIST only follow offsets, in POINTER entries.
+	private static final byte
+		INTEGER = 0, LONG = 1, SHORT = 2, FLOAT = 3, DOUBLE = 4, STRING = 5, RATIONAL_ = 6, SRATIONAL_ = 7,
+		SHORTS = 8, BYTES = 9, INTS = 10, LONGS = 11, FLOATS = 12, DOUBLES = 13, RATIONALS = 14, SRATIONALS = 15,
+		RATIONAL_ARRAY = 16, IFD = 17, IFD_LIST = 18;
+
+	// Null, rather than an exception, for entries that are missing or cannot be read.
+	private ImageFileDirectory read(Path entry, String key, TiffInputStream in) throws IOException {
+
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+
+		ImageFileDirectory ifd = null;
+		boolean corrupt = false;
+		try {
+			if (buffer.getInt() == MAGIC && buffer.getInt() == VERSION && key.equals(string(buffer)))
+				ifd = ifd(buffer, new ImageFileDirectoryLoader(in), in);
+		} catch (RuntimeException e) {
+			corrupt = true;
+		} finally {
+			// Everything was copied out of it.
+			Buffers.free(buffer);
+		}
+
+		if (corrupt) Files.deleteIfExists(entry);
+		// See evict().
+		else if (ifd != null) try {
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (NoSuchFileException e) {
+			// Evicted meanwhile.
+		}
+		return ifd;
+
+	}
+
+	private void write(Path entry, String key, ImageFileDirectory ifd) throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			string(out, key);
+			ifd(out, ifd);
+		} catch (TiffProcessorException | TiffProcessorRuntimeException e) {
+			// Not cached. Whoever asks for the IFDs that could not be read gets the same exception from the tree itself.
+			return;
+		}
+
+		Path temporary = Files.createTempFile(directory, null, ".tmp");
+		try {
+			Files.write(temporary, bytes.toByteArray());
+			Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+
+		// Entries replaced are counted twice, which at worst lists the directory earlier than needed.
+		synchronized (this) {
+			total += bytes.size();
+			if (total > maxBytes) evict();
+		}
+
+	}
+
+	// Least recently used entries first. Reading an entry updates its last modified time.
+	private synchronized void evict() throws IOException {
+
+		List<Path> entries = new ArrayList<Path>();
+		List<BasicFileAttributes> attributes = new ArrayList<BasicFileAttributes>();
+		long size = 0;
+		for (Path entry: entries()) try {
+			attributes.add(Files.readAttributes(entry, BasicFileAttributes.class));
+			entries.add(entry);
+			size += attributes.get(attributes.size() - 1).size();
+		} catch (NoSuchFileException e) {
+			// Evicted by some other process.
+		}
+		total = size;
+		if (size <= maxBytes) return;
+
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < entries.size(); i++) order.add(i);
+		order.sort(Comparator.comparing((Integer i) -> attributes.get(i).lastModifiedTime()));
+		for (int i = 0; i < order.size() && size > maxBytes; i++) {
+			Files.deleteIfExists(entries.get(order.get(i)));
+			size -= attributes.get(order.get(i)).size();
+		}
+		total = size;
+
+	}
+
+	/*
+	 * Writing
+	 */
+
+	@SuppressWarnings("unchecked")
+	private static void ifd(DataOutputStream out, ImageFileDirectory ifd) throws IOException, TiffProcessorException {
+
+		out.writeInt(ifd.size());
+		for (Tag tag: ifd.keySet()) {
+
+			out.writeByte(tag instanceof InteroperabilityTag? INTEROPERABILITY : tag instanceof MakerNoteTag? MAKERNOTE : MAIN);
+			out.writeShort(tag.number);
+
+			Object offset = ifd.getOffset(tag);
+			if (offset == null) {
+				out.writeByte(VALUE);
+				value(out, ifd.get(tag));
+			/*
+			 * Payloads and XMP packets are quick to load again, straight from the stream or the offset value itself. IFDs not
+			 * loaded yet are left for whoever asks for them.
+			 */
+			} else if (tag == Tag.XMP || ImageFileDirectoryLoader.PAYLOADS.contains(tag) || !ifd.isLoaded(tag)) {
+				out.writeByte(PENDING);
+				value(out, offset);
+			} else {
+				out.writeByte(POINTER);
+				value(out, offset);
+				Object value = ifd.get(tag);
+				if (value instanceof List) {
+					out.writeByte(IFD_LIST);
+					out.writeInt(((List<ImageFileDirectory>) value).size());
+					for (ImageFileDirectory subIfd: (List<ImageFileDirectory>) value) ifd(out, subIfd);
+				} else {
+					out.writeByte(IFD);
+					ifd(out, (ImageFileDirectory) value);
+				}
+			}
+
+		}
+
+		out.writeBoolean(ifd.getNext() != null);
+		if (ifd.getNext() != null) ifd(out, ifd.getNext());
+
+	}
+
+	// See ImageFileDirectoryLoader.ifdEntryValue() for all types values may have.
+	private static void value(DataOutputStream out, Object value) throws IOException, TiffProcessorException {
+
+		if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((int) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((long) value);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((short) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((float) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((double) value);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			string(out, (String) value);
+		} else if (value instanceof RATIONAL) {
+			out.writeByte(RATIONAL_);
+			out.writeLong(((RATIONAL) value).getNumerator());
+			out.writeLong(((RATIONAL) value).getDenominator());
+		} else if (value instanceof SRATIONAL) {
+			out.writeByte(SRATIONAL_);
+			out.writeInt(((SRATIONAL) value).getNumerator());
+			out.writeInt(((SRATIONAL) value).getDenominator());
+		} else if (value instanceof short[]) {
+			out.writeByte(SHORTS);
+			out.writeInt(((short[]) value).length);
+			for (short element: (short[]) value) out.writeShort(element);
+		} else if (value instanceof byte[]) {
+			out.writeByte(BYTES);
+			out.writeInt(((byte[]) value).length);
+			out.write((byte[]) value);
+		} else if (value instanceof int[]) {
+			out.writeByte(INTS);
+			out.writeInt(((int[]) value).length);
+			for (int element: (int[]) value) out.writeInt(element);
+		} else if (value instanceof long[]) {
+			out.writeByte(LONGS);
+			out.writeInt(((long[]) value).length);
+			for (long element: (long[]) value) out.writeLong(element);
+		} else if (value instanceof float[]) {
+			out.writeByte(FLOATS);
+			out.writeInt(((float[]) value).length);
+			for (float element: (float[]) value) out.writeFloat(element);
+		} else if (value instanceof double[]) {
+			out.writeByte(DOUBLES);
+			out.writeInt(((double[]) value).length);
+			for (double element: (double[]) value) out.writeDouble(element);
+		} else if (value instanceof RATIONAL[]) {
+			out.writeByte(RATIONALS);
+			out.writeInt(((RATIONAL[]) value).length);
+			for (RATIONAL element: (RATIONAL[]) value) {
+				out.writeLong(element.getNumerator());
+				out.writeLong(element.getDenominator());
+			}
+		} else if (value instanceof SRATIONAL[]) {
+			out.writeByte(SRATIONALS);
+			out.writeInt(((SRATIONAL[]) value).length);
+			for (SRATIONAL element: (SRATIONAL[]) value) {
+				out.writeInt(element.getNumerator());
+				out.writeInt(element.getDenominator());
+			}
+		} else if (value instanceof RationalArray) {
+			RationalArray array = (RationalArray) value;
+			out.writeByte(RATIONAL_ARRAY);
+			out.writeBoolean(array.isSigned());
+			out.writeInt(array.length());
+			for (int i = 0; i < array.length(); i++) {
+				out.writeInt((int) array.getNumerator(i));
+				out.writeInt((int) array.getDenominator(i));
+			}
+		} else throw new TiffProcessorException("Cannot cache values of type " + (value == null? null : value.getClass().getName()));
+
+	}
+
+	private static void string(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/*
+	 * Reading
+	 */
+
+	private static ImageFileDirectory ifd(ByteBuffer buffer, ImageFileDirectoryLoader loader, TiffInputStream in) {
+
+		ImageFileDirectory ifd = new ImageFileDirectory(in);
+		for (int i = buffer.getInt(); i > 0; i--) {
+
+			byte scope = buffer.get();
+			int number = buffer.getShort() & 0xFFFF;
+			Tag tag =
+				scope == MAIN? TiffInputStream.tag(number) :
+				scope == INTEROPERABILITY? TiffInputStream.interoperabilityTag(number) :
+				scope == MAKERNOTE? TiffInputStream.makerNoteTag(number) :
+				null;
+			if (tag == null) throw new IllegalArgumentException("Invalid tag scope: " + scope);
+
+			switch (buffer.get()) {
+				case VALUE:
+					ifd.put(tag, value(buffer));
+				break;
+				case PENDING:
+					ifd.pending(tag, new ImageFileDirectoryLoader.Pending(loader, tag, value(buffer)));
+				break;
+				case POINTER:
+					Object offset = value(buffer);
+					if (buffer.get() == IFD_LIST) {
+						List<ImageFileDirectory> subIfds = new Vector<ImageFileDirectory>();
+						for (int j = buffer.getInt(); j > 0; j--) subIfds.add(ifd(buffer, loader, in));
+						ifd.loaded(tag, offset, subIfds);
+					} else ifd.loaded(tag, offset, ifd(buffer, loader, in));
+				break;
+				default:
+					throw new IllegalArgumentException("Invalid entry kind");
+			}
+
+		}
+
+		if (buffer.get() != 0) ifd.setNext(ifd(buffer, loader, in));
+		return ifd;
+
+	}
+
+	private static Object value(ByteBuffer buffer) {
+		byte type = buffer.get();
+		switch (type) {
+			case INTEGER   : return buffer.getInt();
+			case LONG      : return buffer.getLong();
+			case SHORT     : return buffer.getShort();
+			case FLOAT     : return buffer.getFloat();
+			case DOUBLE    : return buffer.getDouble();
+			case STRING    : return string(buffer);
+			case RATIONAL_ : return new RATIONAL(buffer.getLong(), buffer.getLong());
+			case SRATIONAL_: return new SRATIONAL(buffer.getInt(), buffer.getInt());
+			case RATIONAL_ARRAY:
+				boolean signed = buffer.get() != 0;
+				int[] numerators = new int[buffer.getInt()], denominators = new int[numerators.length];
+				for (int i = 0; i < numerators.length; i++) {
+					numerators[i] = buffer.getInt();
+					denominators[i] = buffer.getInt();
+				}
+				return new RationalArray(numerators, denominators, signed);
+			default        : return array(buffer, type, buffer.getInt());
+		}
+	}
+
+	private static Object array(ByteBuffer buffer, byte type, int length) {
+		switch (type) {
+			case SHORTS:
+				short[] shorts = new short[length];
+				buffer.asShortBuffer().get(shorts);
+				return skip(buffer, Short.BYTES*length, shorts);
+			case BYTES:
+				byte[] bytes = new byte[length];
+				buffer.get(bytes);
+				return bytes;
+			case INTS:
+				int[] ints = new int[length];
+				buffer.asIntBuffer().get(ints);
+				return skip(buffer, Integer.BYTES*length, ints);
+			case LONGS:
+				long[] longs = new long[length];
+				buffer.asLongBuffer().get(longs);
+				return skip(buffer, Long.BYTES*length, longs);
+			case FLOATS:
+				float[] floats = new float[length];
+				buffer.asFloatBuffer().get(floats);
+				return skip(buffer, Float.BYTES*length, floats);
+			case DOUBLES:
+				double[] doubles = new double[length];
+				buffer.asDoubleBuffer().get(doubles);
+				return skip(buffer, Double.BYTES*length, doubles);
+			case RATIONALS:
+				RATIONAL[] rationals = new RATIONAL[length];
+				for (int i = 0; i < length; i++) rationals[i] = new RATIONAL(buffer.getLong(), buffer.getLong());
+				return rationals;
+			case SRATIONALS:
+				SRATIONAL[] srationals = new SRATIONAL[length];
+				for (int i = 0; i < length; i++) srationals[i] = new SRATIONAL(buffer.getInt(), buffer.getInt());
+				return srationals;
+			default:
+				throw new IllegalArgumentException("Invalid value type: " + type);
+		}
+	}
+
+	// Typed views do not move the buffer they were created from.
+	private static Object skip(ByteBuffer buffer, int bytes, Object array) {
+		buffer.position(buffer.position() + bytes);
+		return array;
+	}
+
+	private static String string(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
@@ -14,25 +14,37 @@ package com.github.gasrios.raw.data;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.github.gasrios.raw.io.TiffInputStream;
 import com.github.gasrios.raw.lang.RATIONAL;
+import com.github.gasrios.raw.lang.RationalArray;
 import com.github.gasrios.raw.lang.SRATIONAL;
 import com.github.gasrios.raw.lang.TiffProcessorException;
+import com.github.gasrios.raw.lang.TiffProcessorRuntimeException;
 import com.github.gasrios.xmp.XMPException;
-import com.github.gasrios.xmp.XMPMeta;
-import com.github.gasrios.xmp.XMPMetaFactory;
-import com.github.gasrios.xmp.properties.XMPPropertyInfo;
 
 /*
  * Straightforward transformations are applied here, when we can assume they are sensible:
  *
  * - Offsets are replaced by real values;
- * - XMP content is processed and properties embedded in XML are extracted.
+ * - XMP packets are wrapped in com.github.gasrios.raw.data.XmpProperties, which extracts properties embedded in XML;
+ * - Large opaque values, listed in PAYLOADS, are given as views of the file instead of copies.
+ *
+ * All of them only happen the first time the values of such tags, listed in POINTERS and PAYLOADS, are asked for (see
+ * com.github.gasrios.raw.data.ImageFileDirectory.get()), so IFDs nobody looks at (MakerNote, for example) are never read.
+ * load() reads the first IFD and its chain only.
  *
  * Complex transformations and those that change the structure of the original info, for example processing of CFA tags to
  * extract a pattern, do not happen here.
@@ -55,9 +67,104 @@ public final class ImageFileDirectoryLoader {
 		return ifd;
 	}
 
-	private enum Context { Main, Interoperability, MakerNote }
+	/*
+	 * Loads the whole tree at once, IFDs pointed to by other IFDs included, instead of leaving them to be loaded when first
+	 * asked for. XMP packets and payloads are still left for then.
+	 *
+	 * IFDs pointed to by the IFDs of the same level of the tree (each of the SubIFDs, ExifIFD, MakerNote...) do not depend on
+	 * each other, so each of them is parsed by a task given to executor, reading from its own fork of the stream (see
+	 * com.github.gasrios.raw.io.TiffInputStream.fork()). Once all of them are done, they are put in the tree and handed over
+	 * to the stream itself, and the next level is parsed the same way. Worth it for files with many IFDs, or on storage where
+	 * each read takes long.
+	 *
+	 * The calling thread does not just wait for tasks: it runs those executor has not started yet itself, in the order they
+	 * were given, and only waits for the ones already running elsewhere. So any executor will do, even one with all of its
+	 * threads busy waiting on this very method, or one rejecting tasks, which are then all run by the calling thread.
+	 */
+	public ImageFileDirectory load(Executor executor)
+			throws TiffProcessorException, IOException, FileNotFoundException, XMPException, InterruptedException {
+
+		List<ImageFileDirectory> level = new ArrayList<ImageFileDirectory>();
+		for (ImageFileDirectory current = load(); current != null; current = current.getNext()) level.add(current);
+
+		while (!level.isEmpty()) {
+
+			// Owner, tag and offset of every pointer in this level, and IFDs pointed to, one per offset for SubIFDs.
+			List<ImageFileDirectory> owners = new ArrayList<ImageFileDirectory>();
+			List<Tag> tags = new ArrayList<Tag>();
+			List<List<FutureTask<ImageFileDirectory>>> tasks = new ArrayList<List<FutureTask<ImageFileDirectory>>>();
+
+			for (ImageFileDirectory owner: level) for (Tag tag: POINTERS) {
+				if (tag == Tag.XMP || owner.isLoaded(tag)) continue;
+				Object value = owner.getOffset(tag);
+				List<FutureTask<ImageFileDirectory>> pointed = new ArrayList<FutureTask<ImageFileDirectory>>();
+				if (tag == Tag.SubIFDs) for (long offset: offsets(value)) pointed.add(new FutureTask<ImageFileDirectory>(
+					() -> new ImageFileDirectoryLoader(in.fork()).ifd(offset, Context.Main)
+				));
+				else pointed.add(new FutureTask<ImageFileDirectory>(
+					() -> (ImageFileDirectory) new ImageFileDirectoryLoader(in.fork()).resolve(tag, value)
+				));
+				for (FutureTask<ImageFileDirectory> task: pointed) try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {
+					// Run below, by this thread.
+				}
+				owners.add(owner);
+				tags.add(tag);
+				tasks.add(pointed);
+			}
+
+			List<ImageFileDirectory> next = new ArrayList<ImageFileDirectory>();
+			try {
+				for (int i = 0; i < owners.size(); i++) {
+					List<ImageFileDirectory> pointed = new Vector<ImageFileDirectory>();
+					// A task already started, or done, is not run again.
+					for (FutureTask<ImageFileDirectory> task: tasks.get(i)) {
+						task.run();
+						pointed.add(task.get());
+					}
+					for (ImageFileDirectory ifd: pointed) for (ImageFileDirectory current = ifd; current != null; current = current.getNext()) {
+						adopt(current);
+						next.add(current);
+					}
+					Tag tag = tags.get(i);
+					owners.get(i).loaded(tag, owners.get(i).getOffset(tag), tag == Tag.SubIFDs? pointed : pointed.get(0));
+				}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				if (e.getCause() instanceof TiffProcessorException) throw (TiffProcessorException) e.getCause();
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				if (e.getCause() instanceof Error) throw (Error) e.getCause();
+				throw new TiffProcessorException(e.getCause());
+			} finally {
+				// Whatever is left, should any task fail or this thread be interrupted.
+				for (List<FutureTask<ImageFileDirectory>> pointed: tasks) for (FutureTask<ImageFileDirectory> task: pointed) task.cancel(true);
+			}
+
+			level = next;
+
+		}
+
+		return ifd;
+
+	}
 
+	// See resolve(): SubIFDs holds one offset or many.
 	@SuppressWarnings("unchecked")
+	private static long[] offsets(Object value) {
+		if (value instanceof long[]) return (long[]) value;
+		if (value instanceof List) return ((List<Long>) value).stream().mapToLong(Long::longValue).toArray();
+		return new long[] { (long) value };
+	}
+
+	// IFDs parsed from a fork are handed over to this loader and its stream, which outlive the fork.
+	private void adopt(ImageFileDirectory ifd) {
+		ifd.attach(in);
+		ifd.rebind(pending -> new Pending(this, pending.tag, pending.value));
+	}
+
+	enum Context { Main, Interoperability, MakerNote }
+
 	private long ifd(ImageFileDirectory ifd, Context context) throws IOException, TiffProcessorException {
 
 		int entriescount = in.readSHORT();
@@ -76,62 +183,106 @@ public final class ImageFileDirectoryLoader {
 
 		long nextOffset = in.readOffset();
 
-		// Replace offsets with IFDs and load XMP data
+		// Leave offsets and XMP data to be replaced with IFDs and XMP properties when first needed.
+		for (Tag tag: POINTERS) if (ifd.containsKey(tag)) ifd.pending(tag, new Pending(this, tag, ifd.get(tag)));
 
-		if (ifd.containsKey(Tag.SubIFDs)) {
+		/*
+		 * TODO From Digital Negative Specification Version 1.4.0.0, page 13: IFD chains are not supported.
+		 *
+		 * We should have a "strict" mode that throws an exception for DNG, if offset != 0.
+		 */
+		ImageFileDirectory currentIfd = ifd;
+		while (nextOffset != 0) {
+			in.seek(nextOffset);
+			currentIfd.setNext(new ImageFileDirectory(in));
+			nextOffset = ifd(currentIfd = currentIfd.getNext(), Context.Main);
+		}
+
+		return nextOffset;
+
+	}
+
+	/*
+	 * Replaces offsets with IFDs and loads XMP data. Called by com.github.gasrios.raw.data.ImageFileDirectory.get() the first
+	 * time one of the tags in POINTERS is asked for.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object resolve(Tag tag, Object value) throws IOException, TiffProcessorException {
+
+		if (tag == Tag.SubIFDs) {
 			List<ImageFileDirectory> subIfds = new Vector<ImageFileDirectory>();
-			if (ifd.get(Tag.SubIFDs) instanceof List)
-				for (long subIfdOffset : ((List<Long>) ifd.get(Tag.SubIFDs))) subIfds.add(ifd(subIfdOffset, Context.Main));
-			else subIfds.add(ifd((long) ifd.get(Tag.SubIFDs), Context.Main));
-			ifd.put(Tag.SubIFDs, subIfds);
+			if (value instanceof List)
+				for (long subIfdOffset : ((List<Long>) value)) subIfds.add(ifd(subIfdOffset, Context.Main));
+			else if (value instanceof long[])
+				for (long subIfdOffset : (long[]) value) subIfds.add(ifd(subIfdOffset, Context.Main));
+			else subIfds.add(ifd((long) value, Context.Main));
+			return subIfds;
 		}
 
-		if (ifd.containsKey(Tag.ExifIFD)) {
-			ImageFileDirectory exifIfd = ifd((long) ifd.get(Tag.ExifIFD), Context.Main);
+		if (tag == Tag.ExifIFD) {
+			ImageFileDirectory exifIfd = ifd((long) value, Context.Main);
 			exifIfd.put(Tag.ExifVersion, new String((byte[]) exifIfd.get(Tag.ExifVersion)));
 			if (exifIfd.containsKey(Tag.FlashPixVersion))
 				exifIfd.put(Tag.FlashPixVersion, new String((byte[]) exifIfd.get(Tag.FlashPixVersion)));
-			ifd.put(Tag.ExifIFD, exifIfd);
+			return exifIfd;
 		}
 
-		if (ifd.containsKey(Tag.Interoperability)) {
-			ImageFileDirectory interoperabilityIFD = ifd((long) ifd.get(Tag.Interoperability), Context.Interoperability);
+		if (tag == Tag.Interoperability) {
+			ImageFileDirectory interoperabilityIFD = ifd((long) value, Context.Interoperability);
 			interoperabilityIFD.put(
 				InteroperabilityTag.InteroperabilityVersion,
 				new String((byte[]) interoperabilityIFD.get(InteroperabilityTag.InteroperabilityVersion)));
-			ifd.put(Tag.Interoperability, interoperabilityIFD);
+			return interoperabilityIFD;
 		}
 
-		if (ifd.containsKey(Tag.MakerNote)) {
-			ImageFileDirectory makerNoteIFD = ifd((long) ifd.get(Tag.MakerNote), Context.MakerNote);
-			ifd.put(Tag.MakerNote, makerNoteIFD);
-		}
+		if (tag == Tag.MakerNote) return ifd((long) value, Context.MakerNote);
 
-		if (ifd.containsKey(Tag.XMP)) {
-			short[] xmp = (short[]) ifd.get(Tag.XMP);
-			byte[] buffer = new byte[xmp.length];
-			for (int i = 0; i < buffer.length; i++) buffer[i] = (byte) xmp[i];
-			XMPMeta xmpMeta = XMPMetaFactory.parseFromBuffer(buffer);
-			Map<String, String> xmpData = new TreeMap<String, String>();
-			for (XMPPropertyInfo xmpPropertyInfo: xmpMeta)
-				if (xmpPropertyInfo.getPath() != null && !"".equals(xmpPropertyInfo.getValue()))
-					xmpData.put(xmpPropertyInfo.getPath(), xmpPropertyInfo.getValue());
-			ifd.put(Tag.XMP, xmpData);
-		}
+		if (PAYLOADS.contains(tag)) return in.slice(((long[]) value)[0], (int) ((long[]) value)[1]);
 
-		/*
-		 * TODO From Digital Negative Specification Version 1.4.0.0, page 13: IFD chains are not supported.
-		 *
-		 * We should have a "strict" mode that throws an exception for DNG, if offset != 0.
-		 */
-		ImageFileDirectory currentIfd = ifd;
-		while (nextOffset != 0) {
-			in.seek(nextOffset);
-			currentIfd.setNext(new ImageFileDirectory(in));
-			nextOffset = ifd(currentIfd = currentIfd.getNext(), Context.Main);
+		// Parsed on first access.
+		return new XmpProperties((byte[]) value);
+
+	}
+
+	/*
+	 * Opaque BYTE or UNDEFINED values, often large (OriginalRawFileData may hold a whole raw file), that are given as read only
+	 * java.nio.ByteBuffer views of the file instead of being copied, but for short ones. Views keep the stream buffer they were
+	 * taken from in memory, even after the stream replaces it with a larger one. Views are only created when values are first
+	 * asked for; until then values are { offset, length }. See com.github.gasrios.raw.io.TiffInputStream.slice().
+	 */
+	public static final List<Tag> PAYLOADS = Collections.unmodifiableList(Arrays.asList(
+		Tag.JPEGTables, Tag.InterColorProfile, Tag.DNGPrivateData, Tag.OriginalRawFileData, Tag.AsShotICCProfile,
+		Tag.CurrentICCProfile
+	));
+
+	// Tags whose values are loaded on demand. See resolve().
+	public static final List<Tag> POINTERS = Collections.unmodifiableList(
+		Arrays.asList(Tag.SubIFDs, Tag.ExifIFD, Tag.XMP, Tag.Interoperability, Tag.MakerNote)
+	);
+
+	// Value of a tag in POINTERS, as read from the file.
+	static final class Pending {
+
+		private final ImageFileDirectoryLoader loader;
+		final Tag tag;
+		final Object value;
+
+		Pending(ImageFileDirectoryLoader loader, Tag tag, Object value) {
+			this.loader = loader;
+			this.tag = tag;
+			this.value = value;
 		}
 
-		return nextOffset;
+		// Loading moves the stream around, so nothing else may read from it meanwhile.
+		Object load() {
+			synchronized (loader.in) {
+				try {
+					return loader.resolve(tag, value);
+				} catch (IOException | TiffProcessorException e) {
+					throw new TiffProcessorRuntimeException(e);
+				}
+			}
+		}
 
 	}
 
@@ -142,7 +293,7 @@ public final class ImageFileDirectoryLoader {
 		return ifd;
 	}
 
-	private void ifdEntry(ImageFileDirectory ifd, Tag tag) throws TiffProcessorException, IOException {
+	void ifdEntry(ImageFileDirectory ifd, Tag tag) throws TiffProcessorException, IOException {
 
 		/*
 		 * See Exif Version 2.3, page 46
@@ -169,11 +320,53 @@ public final class ImageFileDirectoryLoader {
 		}
 
 		long count = in.readLONG();
-		if (count > 0xFFFFFFFFL) throw new TiffProcessorException("java arrays do not support lengths out of the positive integer range: " + count);
+
+		/*
+		 * Size of the value in bytes, computed as a long: count is an unsigned 32 bit integer, and multiplied by the size of its
+		 * type may overflow an int. Values are read into java arrays, so neither may exceed Integer.MAX_VALUE. Once this holds,
+		 * int arithmetic on count and its size in bytes, here and in the methods reading the value, is safe.
+		 */
+		long length = type.size * count;
+		if (length > Integer.MAX_VALUE)
+			throw new TiffProcessorException("java arrays do not support lengths out of the positive integer range: " + tag + " holds " + length + " bytes");
+
+		if (PAYLOADS.contains(tag) && type.size == 1) {
+			long offset = count > 4? in.readOffset() : in.getPosition();
+			if (count <= 4) in.skip(4);
+			ifd.pending(tag, new Pending(this, tag, new long[] { offset, count }));
+			return;
+		}
+
+		// XMP packets are kept as they are, in one bulk read, until parsed. See com.github.gasrios.raw.data.XmpProperties.
+		if (tag.equals(Tag.XMP) && type.size == 1) {
+			byte[] packet = new byte[(int) count];
+			if (count > 4) {
+				long offset = in.readOffset();
+				in.mark();
+				in.seek(offset);
+				in.readFully(packet, packet.length);
+				in.reset();
+			} else {
+				in.readFully(packet, packet.length);
+				in.skip(4 - count);
+			}
+			ifd.put(tag, packet);
+			return;
+		}
+
+		// Always more than 4 bytes. See RATIONAL_ARRAYS.
+		if (RATIONAL_ARRAYS.contains(tag) && (type == Type.RATIONAL || type == Type.SRATIONAL)) {
+			long offset = in.readOffset();
+			in.mark();
+			in.seek(offset);
+			ifd.put(tag, rationalArray(in.readBuffer((int) length).asIntBuffer(), (int) count, type == Type.SRATIONAL));
+			in.reset();
+			return;
+		}
 
 		// It is easier to force BitsPerSample and WhiteLevel to arrays, so we do not need to treat special cases.
 		if (tag.equals(Tag.BitsPerSample) || tag.equals(Tag.WhiteLevel)) {
-			if (type.size * count > 4) {
+			if (length > 4) {
 				long offset = in.readOffset();
 				in.mark();
 				in.seek(offset);
@@ -181,7 +374,7 @@ public final class ImageFileDirectoryLoader {
 				in.reset();
 			} else {
 				ifd.put(tag, ifdEntryMultipleNumericValues(type, (int) count));
-				in.skip(4 - type.size * count);
+				in.skip(4 - length);
 			}
 			return;
 		}
@@ -191,7 +384,7 @@ public final class ImageFileDirectoryLoader {
 		 *
 		 * "Value Offset contains the Value instead of pointing to the Value if and only if the Value fits into 4 bytes."
 		 */
-		if (type.size * count > 4) {
+		if (length > 4) {
 			long offset = in.readOffset();
 			in.mark();
 			in.seek(offset);
@@ -199,7 +392,7 @@ public final class ImageFileDirectoryLoader {
 			in.reset();
 		} else {
 			ifd.put(tag, ifdEntryValue(type, (int) count));
-			in.skip(4 - type.size * count);
+			in.skip(4 - length);
 		}
 
 	}
@@ -230,43 +423,68 @@ public final class ImageFileDirectoryLoader {
 		}
 	}
 
+	/*
+	 * Tags holding one value per column or row, stored as com.github.gasrios.raw.lang.RationalArray instead of arrays of objects
+	 * whatever their count, even one. Values of other RATIONAL and SRATIONAL tags are RATIONAL or SRATIONAL, or arrays of them.
+	 */
+	public static final List<Tag> RATIONAL_ARRAYS = Collections.unmodifiableList(Arrays.asList(Tag.BlackLevelDeltaH, Tag.BlackLevelDeltaV));
+
+	// The whole value is read at once, then decoded through typed views rather than element by element from the stream.
 	private Object ifdEntryMultipleNumericValues(Type type, int count) throws IOException {
+		ByteBuffer buffer = in.readBuffer(type.size * count);
 		switch (type) {
 			case SHORT:
+				ShortBuffer shortBuffer = buffer.asShortBuffer();
 				int[] shorts = new int[count];
-				for (int i = 0; i < count; i++) shorts[i] = in.readSHORT();
+				for (int i = 0; i < count; i++) shorts[i] = shortBuffer.get(i) & 0xFFFF;
 				return shorts;
 			case LONG:
+				IntBuffer intBuffer = buffer.asIntBuffer();
 				long[] longs = new long[count];
-				for (int i = 0; i < count; i++) longs[i] = in.readLONG();
+				for (int i = 0; i < count; i++) longs[i] = intBuffer.get(i) & 0xFFFFFFFFL;
 				return longs;
 			case RATIONAL:
-				RATIONAL[] rationals = new RATIONAL[count];
-				for (int i = 0; i < count; i++) rationals[i] = in.readRATIONAL();
-				return rationals;
+			case SRATIONAL:
+				return rationals(buffer.asIntBuffer(), count, type == Type.SRATIONAL);
 			case SSHORT:
 				short[] sshorts = new short[count];
-				for (int i = 0; i < count; i++) sshorts[i] = in.readSSHORT();
+				buffer.asShortBuffer().get(sshorts);
 				return sshorts;
 			case SLONG:
 				int[] ints = new int[count];
-				for (int i = 0; i < count; i++) ints[i] = in.readSLONG();
+				buffer.asIntBuffer().get(ints);
 				return ints;
-			case SRATIONAL:
-				SRATIONAL[] srationals = new SRATIONAL[count];
-				for (int i = 0; i < count; i++) srationals[i] = in.readSRATIONAL();
-				return srationals;
 			case FLOAT:
 				float[] floats = new float[count];
-				for (int i = 0; i < count; i++) floats[i] = in.readFLOAT();
+				buffer.asFloatBuffer().get(floats);
 				return floats;
 			case DOUBLE:
 				double[] doubles = new double[count];
-				for (int i = 0; i < count; i++) doubles[i] = in.readDOUBLE();
+				buffer.asDoubleBuffer().get(doubles);
 				return doubles;
 			default:
 				return null;
 		}
 	}
 
+	private static Object rationals(IntBuffer buffer, int count, boolean signed) {
+		if (signed) {
+			SRATIONAL[] srationals = new SRATIONAL[count];
+			for (int i = 0; i < count; i++) srationals[i] = new SRATIONAL(buffer.get(2*i), buffer.get(2*i + 1));
+			return srationals;
+		}
+		RATIONAL[] rationals = new RATIONAL[count];
+		for (int i = 0; i < count; i++) rationals[i] = new RATIONAL(buffer.get(2*i) & 0xFFFFFFFFL, buffer.get(2*i + 1) & 0xFFFFFFFFL);
+		return rationals;
+	}
+
+	private static RationalArray rationalArray(IntBuffer buffer, int count, boolean signed) {
+		int[] numerators = new int[count], denominators = new int[count];
+		for (int i = 0; i < count; i++) {
+			numerators[i] = buffer.get(2*i);
+			denominators[i] = buffer.get(2*i + 1);
+		}
+		return new RationalArray(numerators, denominators, signed);
+	}
+
 }
\ No newline at end of file
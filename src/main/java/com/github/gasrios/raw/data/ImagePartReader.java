@@ -0,0 +1,201 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import com.github.gasrios.raw.lang.ArrayPool;
+import com.github.gasrios.raw.lang.TiffProcessorException;
+import com.github.gasrios.raw.lang.TiffProcessorRuntimeException;
+
+/*
+ * Reads the strips, or tiles, of the image in an IFD in the background, ahead of whoever converts them, so reading and
+ * converting overlap.
+ *
+ * Reads are planned before any starts: parts are sorted by offset and those stored one right after the other are merged into
+ * runs, read with a single seek, up to prefetch bytes each. Runs are then read in the order their first parts are taken, so
+ * parts come in by the time they are needed, however they are laid out in the file.
+ *
+ * At most prefetch bytes of parts are kept waiting to be taken, unless take() asks for a part not read yet: reading then goes
+ * on regardless, so parts stored out of order cannot keep it waiting forever.
+ *
+ * Parts are read into arrays from an ArrayPool, and should be released back to it once done with. close() releases those
+ * never taken.
+ */
+
+public final class ImagePartReader implements AutoCloseable {
+
+	public static final long DEFAULT_PREFETCH = 16L << 20;
+
+	private final ImageFileDirectory ifd;
+	private final ArrayPool pool;
+	private final long prefetch;
+
+	// Parts of each run, in the order runs are read.
+	private final List<int[]> runs = new ArrayList<int[]>();
+
+	// Guarded by this.
+	private final Map<Integer, byte[]> ready = new HashMap<Integer, byte[]>();
+	private long readyBytes = 0;
+	private int wanted = -1;
+	private boolean closed = false, finished = false;
+	private Throwable error = null;
+
+	// Reads on a thread of READERS.
+	public ImagePartReader(ImageFileDirectory ifd, ArrayPool pool) { this(ifd, pool, DEFAULT_PREFETCH, READERS); }
+
+	/*
+	 * Threads reading for readers not given an executor of their own. Reading mostly waits, for the disk or for parts to be
+	 * taken, so there is one thread per reader at work, reused for later readers. Threads are daemons, so they never keep the
+	 * JVM from exiting.
+	 */
+	private static final Executor READERS = Executors.newCachedThreadPool(command -> {
+		Thread thread = new Thread(command, "ImagePartReader");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public ImagePartReader(ImageFileDirectory ifd, ArrayPool pool, long prefetch, Executor executor) {
+		this.ifd = ifd;
+		this.pool = pool;
+		this.prefetch = prefetch;
+		plan();
+		executor.execute(this::read);
+	}
+
+	private void plan() {
+
+		Integer[] parts = new Integer[ifd.getImagePartCount()];
+		for (int i = 0; i < parts.length; i++) parts[i] = i;
+		Arrays.sort(parts, Comparator.comparingLong((Integer part) -> ifd.getImagePartOffset(part)));
+
+		List<Integer> current = new ArrayList<Integer>();
+		long end = -1, size = 0;
+		for (int part: parts) {
+			long offset = ifd.getImagePartOffset(part), byteCount = ifd.getImagePartByteCount(part);
+			if (!current.isEmpty() && (offset != end || size + byteCount > prefetch)) {
+				runs.add(toArray(current));
+				current.clear();
+				size = 0;
+			}
+			current.add(part);
+			end = offset + byteCount;
+			size += byteCount;
+		}
+		if (!current.isEmpty()) runs.add(toArray(current));
+
+		runs.sort(Comparator.comparingInt((int[] run) -> min(run)));
+
+	}
+
+	private void read() {
+		try {
+			for (int[] run: runs) {
+
+				long size = 0;
+				for (int part: run) size += ifd.getImagePartByteCount(part);
+
+				synchronized (this) {
+					while (!closed && readyBytes > 0 && readyBytes + size > prefetch && wanted < 0) wait();
+					if (closed) return;
+				}
+
+				ifd.checkCancelled();
+
+				byte[][] parts = new byte[run.length][];
+				int[] lengths = new int[run.length];
+				for (int i = 0; i < run.length; i++) parts[i] = pool.bytes(lengths[i] = (int) ifd.getImagePartByteCount(run[i]));
+				try {
+					ifd.readContiguous(ifd.getImagePartOffset(run[0]), parts, lengths);
+				} catch (IOException | RuntimeException e) {
+					for (byte[] part: parts) pool.release(part);
+					throw e;
+				}
+
+				synchronized (this) {
+					if (closed) {
+						for (byte[] part: parts) pool.release(part);
+						return;
+					}
+					for (int i = 0; i < run.length; i++) ready.put(run[i], parts[i]);
+					readyBytes += size;
+					notifyAll();
+				}
+
+			}
+			synchronized (this) {
+				finished = true;
+				notifyAll();
+			}
+		} catch (IOException | TiffProcessorException | RuntimeException | InterruptedException e) {
+			synchronized (this) {
+				error = e;
+				notifyAll();
+			}
+		}
+	}
+
+	// Waits for a part to be read, then hands it over. Each part can be taken only once.
+	public synchronized byte[] take(int number) throws TiffProcessorException {
+		try {
+			while (!ready.containsKey(number)) {
+				if (error instanceof TiffProcessorException) throw (TiffProcessorException) error;
+				if (error != null) throw new TiffProcessorRuntimeException(error);
+				if (closed) throw new IllegalStateException("Reader closed");
+				if (finished) throw new IllegalArgumentException("No such part, or already taken: " + number);
+				wanted = number;
+				notifyAll();
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TiffProcessorRuntimeException(e);
+		} finally {
+			wanted = -1;
+		}
+		byte[] part = ready.remove(number);
+		readyBytes -= ifd.getImagePartByteCount(number);
+		notifyAll();
+		return part;
+	}
+
+	// Stops reading, releasing parts not taken.
+	@Override public synchronized void close() {
+		closed = true;
+		for (byte[] part: ready.values()) pool.release(part);
+		ready.clear();
+		readyBytes = 0;
+		notifyAll();
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+		return array;
+	}
+
+	private static int min(int[] array) {
+		int min = Integer.MAX_VALUE;
+		for (int value: array) if (value < min) min = value;
+		return min;
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.data;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.gasrios.raw.lang.ArrayPool;
+
+/*
+ * One strip or tile of an image, along with the area of the image it covers: rows top to bottom - 1 and columns left to
+ * right - 1. Parts at the right or bottom edges of a tiled image may extend beyond it, as TIFF 6.0 Specification, page 67,
+ * requires tiles to be of the same size.
+ *
+ * Only uncompressed images are published, so data holds samples as they are, each taking as many bytes as BitsPerSample
+ * needs, in byteOrder. The array comes from an ArrayPool and may be longer than the part: only its first length bytes are.
+ *
+ * The same chunk goes to every subscriber. Each of them should call release() once done with it, and not touch data again
+ * afterwards; the array goes back to the pool when the last one does. Chunks never released are just left to the garbage
+ * collector.
+ *
+ * See com.github.gasrios.raw.data.RasterPublisher.
+ */
+
+public final class RasterChunk {
+
+	public final int number, top, left, bottom, right, length;
+
+	public final byte[] data;
+
+	public final ByteOrder byteOrder;
+
+	private final ArrayPool pool;
+	private final AtomicInteger references;
+
+	RasterChunk(int number, int top, int left, int bottom, int right, byte[] data, int length, ByteOrder byteOrder, ArrayPool pool) {
+		this.number		= number;
+		this.top		= top;
+		this.left		= left;
+		this.bottom		= bottom;
+		this.right		= right;
+		this.data		= data;
+		this.length		= length;
+		this.byteOrder	= byteOrder;
+		this.pool		= pool;
+		references		= new AtomicInteger();
+	}
+
+	// Set by the publisher before handing the chunk over, to the number of subscribers it goes to.
+	void retain(int subscribers) { if (references.addAndGet(subscribers) <= 0) pool.release(data); }
+
+	public void release() { if (references.decrementAndGet() == 0) pool.release(data); }
+
+}
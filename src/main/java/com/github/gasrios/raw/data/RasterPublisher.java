@@ -0,0 +1,283 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.gasrios.raw.lang.ArrayPool;
+import com.github.gasrios.raw.lang.TiffProcessorException;
+import com.github.gasrios.raw.lang.TiffProcessorRuntimeException;
+
+/*
+ * Publishes the strips, or tiles, of the image in an IFD, in file order, to any number of subscribers, reading each from the
+ * file only once.
+ *
+ * Parts are read ahead of delivery, but only up to what every subscriber has requested and not yet received: reading pauses as
+ * soon as the slowest subscriber falls behind, and at most that many parts are held in memory per subscriber. Each subscriber
+ * gets its parts delivered by a task of its own, so fast subscribers do not wait for slow ones to return from onNext(), only
+ * to request more.
+ *
+ * Parts are read through a com.github.gasrios.raw.data.ImagePartReader, which reads ahead in the background, into arrays
+ * taken from an ArrayPool. Subscribers give them back with com.github.gasrios.raw.data.RasterChunk.release().
+ *
+ * Reading starts when start() is called, so that all subscribers get the whole image. Those subscribing later only get the
+ * parts read after they did. Cancelled subscribers are no longer waited for. close() stops reading.
+ *
+ * Delivery runs on the executor given. See com.github.gasrios.raw.processor.TiffProcessorEngine.getRaster() for a publisher
+ * fed as the file gets processed.
+ */
+
+public final class RasterPublisher implements Flow.Publisher<RasterChunk>, AutoCloseable {
+
+	private final ImageFileDirectory ifd;
+	private final Executor executor;
+	private final ArrayPool pool;
+
+	private final int parts, width, length, partWidth, partLength, partsAcross;
+
+	private final List<RasterSubscription> subscriptions = new ArrayList<RasterSubscription>();
+
+	// Guarded by this.
+	private boolean started = false;
+	private int next = 0, read = 0;
+	private Throwable error = null;
+	private ImagePartReader reader = null;
+
+	private final AtomicInteger readRequests = new AtomicInteger();
+
+	public RasterPublisher(ImageFileDirectory ifd, Executor executor) { this(ifd, executor, ArrayPool.SHARED); }
+
+	public RasterPublisher(ImageFileDirectory ifd, Executor executor, ArrayPool pool) {
+
+		// See TIFF 6.0 Specification, page 30. 1 (no compression) is the default.
+		if (ifd.containsKey(Tag.Compression) && number(ifd.get(Tag.Compression)) != 1)
+			throw new TiffProcessorRuntimeException("Only uncompressed images can be published");
+
+		this.ifd = ifd;
+		this.executor = executor;
+		this.pool = pool;
+
+		parts	= ifd.getImagePartCount();
+		width	= (int) number(ifd.get(Tag.ImageWidth));
+		length	= (int) number(ifd.get(Tag.ImageLength));
+
+		if (ifd.containsKey(Tag.TileOffsets)) {
+			partWidth	= (int) number(ifd.get(Tag.TileWidth));
+			partLength	= (int) number(ifd.get(Tag.TileLength));
+		} else {
+			partWidth	= width;
+			// See TIFF 6.0 Specification, page 39. Default is 2**32 - 1, effectively infinity.
+			partLength	= ifd.containsKey(Tag.RowsPerStrip)? (int) java.lang.Math.min(length, number(ifd.get(Tag.RowsPerStrip))) : length;
+		}
+
+		partsAcross = (width + partWidth - 1)/partWidth;
+
+	}
+
+	@Override public void subscribe(Flow.Subscriber<? super RasterChunk> subscriber) {
+		RasterSubscription subscription = new RasterSubscription(subscriber);
+		synchronized (this) {
+			subscriptions.add(subscription);
+		}
+		subscriber.onSubscribe(subscription);
+		// Parts may have all been read already.
+		subscription.signal();
+	}
+
+	public void start() {
+		synchronized (this) {
+			if (started) return;
+			started = true;
+			reader = new ImagePartReader(ifd, pool);
+		}
+		read();
+	}
+
+	// Waits until every part has been read, reading failed, or no subscriber is left.
+	public synchronized void await() throws InterruptedException {
+		while (started && error == null && read < parts && !subscriptions.isEmpty()) wait();
+	}
+
+	// Stops reading, releasing parts read ahead and not published yet.
+	@Override public synchronized void close() {
+		if (reader != null) reader.close();
+		if (error == null && read < parts) error = new IllegalStateException("Publisher closed");
+		notifyAll();
+	}
+
+	private void read() { if (readRequests.getAndIncrement() == 0) executor.execute(this::readLoop); }
+
+	// Reads as many parts as all subscribers have room for, then hands them over. Never runs concurrently with itself.
+	private void readLoop() {
+		int missed = 1;
+		while (true) {
+			int number;
+			while ((number = nextPart()) >= 0) {
+				RasterChunk chunk;
+				try {
+					chunk = chunk(number);
+				} catch (RuntimeException e) {
+					fail(e);
+					break;
+				}
+				List<RasterSubscription> receivers;
+				synchronized (this) {
+					receivers = new ArrayList<RasterSubscription>(subscriptions);
+					chunk.retain(receivers.size());
+					for (RasterSubscription subscription: receivers) subscription.queue.add(chunk);
+					read++;
+					notifyAll();
+				}
+				for (RasterSubscription subscription: receivers) subscription.signal();
+			}
+			if ((missed = readRequests.addAndGet(-missed)) == 0) break;
+		}
+	}
+
+	// Number of the next part to read, if every subscriber has room for it, or -1. Also signals completion.
+	private int nextPart() {
+		List<RasterSubscription> receivers;
+		synchronized (this) {
+			if (!started || error != null || subscriptions.isEmpty()) return -1;
+			if (next < parts) {
+				for (RasterSubscription subscription: subscriptions) if (subscription.demand <= subscription.queue.size()) return -1;
+				return next++;
+			}
+			receivers = new ArrayList<RasterSubscription>(subscriptions);
+		}
+		for (RasterSubscription subscription: receivers) subscription.signal();
+		return -1;
+	}
+
+	private RasterChunk chunk(int number) {
+		int top, left, bottom, right;
+		if (ifd.containsKey(Tag.TileOffsets)) {
+			top		= (number/partsAcross)*partLength;
+			left	= (number%partsAcross)*partWidth;
+			bottom	= top + partLength;
+			right	= left + partWidth;
+		} else {
+			top		= number*partLength;
+			left	= 0;
+			bottom	= java.lang.Math.min(length, top + partLength);
+			right	= width;
+		}
+		byte[] data;
+		try {
+			data = reader.take(number);
+		} catch (TiffProcessorException e) {
+			throw new TiffProcessorRuntimeException(e);
+		}
+		return new RasterChunk(number, top, left, bottom, right, data, (int) ifd.getImagePartByteCount(number), ifd.getByteOrder(), pool);
+	}
+
+	private void fail(Throwable e) {
+		List<RasterSubscription> receivers;
+		synchronized (this) {
+			error = e;
+			receivers = new ArrayList<RasterSubscription>(subscriptions);
+			notifyAll();
+		}
+		for (RasterSubscription subscription: receivers) subscription.signal();
+	}
+
+	// ImageWidth, ImageLength, RowsPerStrip, TileWidth and TileLength may be SHORT or LONG.
+	private static long number(Object value) { return value instanceof Integer? (int) value : (long) value; }
+
+	private final class RasterSubscription implements Flow.Subscription {
+
+		private final Flow.Subscriber<? super RasterChunk> subscriber;
+
+		// Parts read but not delivered yet, and parts requested but not delivered yet. Guarded by RasterPublisher.this.
+		private final Queue<RasterChunk> queue = new ArrayDeque<RasterChunk>();
+		private long demand = 0;
+
+		private boolean done = false;
+		private Throwable failure = null;
+
+		private final AtomicInteger deliveryRequests = new AtomicInteger();
+
+		private RasterSubscription(Flow.Subscriber<? super RasterChunk> subscriber) { this.subscriber = subscriber; }
+
+		@Override public void request(long n) {
+			synchronized (RasterPublisher.this) {
+				// See Reactive Streams Specification, rule 3.9.
+				if (n <= 0) {
+					if (failure == null) failure = new IllegalArgumentException("Non-positive request: " + n);
+				} else {
+					demand = demand + n < 0? Long.MAX_VALUE : demand + n;
+				}
+			}
+			signal();
+			read();
+		}
+
+		@Override public void cancel() {
+			synchronized (RasterPublisher.this) {
+				subscriptions.remove(this);
+				drop();
+				done = true;
+			}
+			// One fewer subscriber to wait for.
+			read();
+		}
+
+		// Parts this subscriber will not get. Called with RasterPublisher.this locked.
+		private void drop() {
+			for (RasterChunk chunk: queue) chunk.release();
+			queue.clear();
+			RasterPublisher.this.notifyAll();
+		}
+
+		private void signal() { if (deliveryRequests.getAndIncrement() == 0) executor.execute(this::deliveryLoop); }
+
+		// Delivers parts as they get requested, then completion or failure. Never runs concurrently with itself.
+		private void deliveryLoop() {
+			int missed = 1;
+			while (true) {
+				while (true) {
+					RasterChunk chunk = null;
+					Throwable failure = null;
+					boolean complete = false;
+					synchronized (RasterPublisher.this) {
+						if (done) break;
+						if (this.failure != null) failure = this.failure;
+						else if (error != null) failure = error;
+						else if (demand > 0 && !queue.isEmpty()) {
+							chunk = queue.poll();
+							demand--;
+						} else if (queue.isEmpty() && read == parts) complete = true;
+						else break;
+						if (failure != null || complete) {
+							done = true;
+							subscriptions.remove(this);
+							drop();
+						}
+					}
+					if (failure != null) subscriber.onError(failure);
+					else if (complete) subscriber.onComplete();
+					else subscriber.onNext(chunk);
+				}
+				if ((missed = deliveryRequests.addAndGet(-missed)) == 0) break;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.data;
+
+import java.util.Map;
+
+import com.github.gasrios.raw.lang.TiffProcessorException;
+import com.github.gasrios.raw.processor.Control;
+
+/*
+ * Receives events from com.github.gasrios.raw.data.TiffEventParser as the file is read. Unlike
+ * com.github.gasrios.raw.processor.TiffProcessor, nothing is handed over as a loaded IFD tree: listeners see each entry once,
+ * in file order, and keep whatever they need themselves.
+ *
+ * For each IFD, calls are nested as follows:
+ *
+ * - startIfd()
+ * - tag(), once per retained entry or pointer, in file order
+ * - startIfd() ... endIfd() for each IFD pointed to, in the order their pointers were found, and xmp() for XMP data
+ * - endIfd()
+ *
+ * then the next IFD in the chain, if any, gets the same treatment. end() is called last.
+ *
+ * Controls have the same meaning they have for TiffProcessor:
+ *
+ * - From startIfd(), SKIP_SUBTREE skips the entries of the IFD and every IFD it points to, but not the IFDs chained to it;
+ * - From tag(), SKIP_SUBTREE skips the IFD the tag points to, if any, or else the remaining entries of the IFD and every IFD
+ *   it points to;
+ * - STOP ends parsing right away. endIfd() is still called for IFDs already started, and end() gets called.
+ */
+
+public interface TiffEventListener {
+
+	/*
+	 * Called before any entry of an IFD is read. pointer is the tag pointing to it (SubIFDs, ExifIFD, Interoperability or
+	 * MakerNote), null for the first IFD and those chained to it, and depth is the number of pointers followed to get here.
+	 */
+	Control startIfd(Tag pointer, int depth) throws TiffProcessorException;
+
+	/*
+	 * Asked once per entry, before its value is read. Values of entries not retained are skipped over, never read. Tags in
+	 * com.github.gasrios.raw.data.ImageFileDirectoryLoader.POINTERS but XMP are always passed to tag(), with offsets as their
+	 * values, as following them is what the parser does; retaining XMP makes it read the XMP packet and call xmp().
+	 */
+	boolean retain(Tag tag);
+
+	Control tag(Tag tag, Object value) throws TiffProcessorException;
+
+	// Called with the properties in XMP data, if Tag.XMP is retained. See com.github.gasrios.raw.data.XmpProperties.
+	Control xmp(Map<String, String> xmp) throws TiffProcessorException;
+
+	/*
+	 * Called after all entries of an IFD and the IFDs it points to. ifd holds the retained entries only, pointers excluded, and
+	 * can be used to read strips and tiles while the stream is still open.
+	 */
+	void endIfd(ImageFileDirectory ifd) throws TiffProcessorException;
+
+	// Called after all other methods
+	void end() throws TiffProcessorException;
+
+}
@@ -0,0 +1,172 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.gasrios.raw.data.ImageFileDirectoryLoader.Context;
+import com.github.gasrios.raw.io.TiffInputStream;
+import com.github.gasrios.raw.lang.TiffProcessorException;
+import com.github.gasrios.raw.processor.Control;
+
+/*
+ * Reads a TIFF file and reports what it finds to a com.github.gasrios.raw.data.TiffEventListener while doing so, the way a SAX
+ * parser reports XML. ImageFileDirectoryLoader builds an ImageFileDirectory tree first, which TiffProcessorEngine then walks;
+ * here no tree is ever built.
+ *
+ * The first event is sent before the first entry is read, and only the entries the listener retains are kept, until the end
+ * of their IFD. What else is held at any given time is the list of pointers of each IFD being read, so memory grows with
+ * nesting depth, not with metadata size.
+ *
+ * Entries are read from their absolute offsets, so listeners may use the stream (to read strips of IFDs handed over by
+ * endIfd(), for example) from within any callback.
+ */
+
+public final class TiffEventParser {
+
+	private final TiffInputStream in;
+	private final TiffEventListener listener;
+	private final ImageFileDirectoryLoader loader;
+
+	// Set once any callback returns Control.STOP.
+	private boolean stopped = false;
+
+	public TiffEventParser(TiffInputStream in, TiffEventListener listener) {
+		this.in = in;
+		this.listener = listener;
+		loader = new ImageFileDirectoryLoader(in);
+	}
+
+	public void parse() throws TiffProcessorException, IOException {
+		synchronized (in) {
+			ifdChain(in.getPosition(), null, 0, Context.Main);
+		}
+		listener.end();
+	}
+
+	private boolean stop(Control control) { return stopped |= control == Control.STOP; }
+
+	private void ifdChain(long offset, Tag pointer, int depth, Context context)
+			throws TiffProcessorException, IOException {
+		while (offset != 0 && !stopped) offset = ifd(offset, pointer, depth, context);
+	}
+
+	// Returns the offset of the next IFD in the chain.
+	private long ifd(long offset, Tag pointer, int depth, Context context) throws TiffProcessorException, IOException {
+
+		in.getCancellationToken().check();
+
+		in.seek(offset);
+		int entriescount = in.readSHORT();
+
+		ImageFileDirectory retained = new ImageFileDirectory(in);
+
+		Control control = listener.startIfd(pointer, depth);
+
+		// Pointers to follow once all entries are read, along with their values.
+		List<Tag> pointers = new ArrayList<Tag>();
+		List<Object> values = new ArrayList<Object>();
+
+		if (!stop(control) && control != Control.SKIP_SUBTREE) {
+			ImageFileDirectory entry = new ImageFileDirectory(in);
+			for (int i = 0; i < entriescount; i++) {
+				in.seek(offset + 2 + 12*i);
+				Tag tag = tag(context);
+				boolean isPointer = tag != Tag.XMP && ImageFileDirectoryLoader.POINTERS.contains(tag);
+				if (!isPointer && !listener.retain(tag)) continue;
+				loader.ifdEntry(entry, tag);
+				// Unexpected field types are skipped.
+				if (!entry.containsKey(tag)) continue;
+				/*
+				 * tag() is handed values, not placeholders, so payloads of retained entries are sliced out of the file right away,
+				 * as views rather than copies. See ImageFileDirectoryLoader.PAYLOADS.
+				 */
+				Object value = value(tag, entry.get(tag));
+				entry.remove(tag);
+				if (tag == Tag.XMP) {
+					pointers.add(tag);
+					values.add(value);
+					continue;
+				}
+				control = listener.tag(tag, value);
+				if (stop(control)) break;
+				if (isPointer) {
+					if (control == Control.CONTINUE) {
+						pointers.add(tag);
+						values.add(value);
+					}
+					continue;
+				}
+				if (control == Control.SKIP_SUBTREE) {
+					pointers.clear();
+					break;
+				}
+				retained.put(tag, value);
+			}
+		}
+
+		in.seek(offset + 2 + 12*entriescount);
+		long nextOffset = in.readOffset();
+
+		for (int i = 0; i < pointers.size() && !stopped; i++) {
+			Tag tag = pointers.get(i);
+			if (tag == Tag.XMP) stop(listener.xmp(new XmpProperties((byte[]) values.get(i))));
+			else for (long childOffset: offsets(values.get(i))) if (!stopped) ifdChain(childOffset, tag, depth + 1, context(tag));
+		}
+
+		listener.endIfd(retained);
+
+		return nextOffset;
+
+	}
+
+	private Tag tag(Context context) throws TiffProcessorException, IOException {
+		switch (context) {
+			case Interoperability:	return in.readInteroperabilityTag();
+			case MakerNote:			return in.readMakerNoteTag();
+			default:				return in.readTag();
+		}
+	}
+
+	private static Context context(Tag pointer) {
+		if (pointer == Tag.Interoperability) return Context.Interoperability;
+		if (pointer == Tag.MakerNote) return Context.MakerNote;
+		return Context.Main;
+	}
+
+	// Same conversions ImageFileDirectoryLoader applies to Exif and Interoperability IFDs.
+	private static Object value(Tag tag, Object value) {
+		if (
+			value instanceof byte[] &&
+			(tag.equals(Tag.ExifVersion) || tag.equals(Tag.FlashPixVersion) || tag.equals(InteroperabilityTag.InteroperabilityVersion))
+		)
+			return new String((byte[]) value);
+		return value;
+	}
+
+	// SubIFDs may hold several offsets, stored as SHORT or LONG.
+	private static long[] offsets(Object value) {
+		if (value instanceof long[]) return (long[]) value;
+		if (value instanceof int[]) {
+			int[] shorts = (int[]) value;
+			long[] offsets = new long[shorts.length];
+			for (int i = 0; i < shorts.length; i++) offsets[i] = shorts[i];
+			return offsets;
+		}
+		if (value instanceof Integer) return new long[] { (int) value };
+		return new long[] { (long) value };
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.github.gasrios.raw.lang.TiffProcessorRuntimeException;
+import com.github.gasrios.xmp.XMPException;
+import com.github.gasrios.xmp.XMPMeta;
+import com.github.gasrios.xmp.XMPMetaFactory;
+import com.github.gasrios.xmp.XMPSchemaRegistry;
+import com.github.gasrios.xmp.properties.XMPPropertyInfo;
+
+/*
+ * Properties extracted from an XMP packet, keyed by path ("crs:Exposure2012", for example), which is only parsed the first
+ * time any of them is asked for. Packets written by editing software often take hundreds of KB, and most processors never look
+ * at them.
+ *
+ * Properties may be restricted to some namespaces, given by their prefixes ("crs", "dc"), with filter(). Packets holding none
+ * of them are not even parsed. Namespaces are told apart by their URIs, so properties are found whatever prefix the packet
+ * binds them to, and keyed by the prefix XMPCore has registered for them. Parsing errors are thrown as com.github.gasrios.raw.lang.TiffProcessorRuntimeException.
+ *
+ * The map is read only.
+ */
+
+public final class XmpProperties extends AbstractMap<String, String> {
+
+	private final byte[] packet;
+
+	// Namespace prefixes, each followed by a colon, or null for all namespaces.
+	private final String[] prefixes;
+
+	// Guarded by this.
+	private Map<String, String> properties = null;
+
+	XmpProperties(byte[] packet) { this(packet, null); }
+
+	private XmpProperties(byte[] packet, String[] prefixes) {
+		this.packet = packet;
+		this.prefixes = prefixes;
+	}
+
+	// The packet as stored in the file. Not a copy, so it must not be changed.
+	public byte[] getPacket() { return packet; }
+
+	// A view of the same packet holding only properties in the namespaces given, parsed separately.
+	public XmpProperties filter(String... prefixes) {
+		String[] qualified = new String[prefixes.length];
+		for (int i = 0; i < prefixes.length; i++) qualified[i] = prefixes[i] + ":";
+		return new XmpProperties(packet, qualified);
+	}
+
+	// Whether properties have been parsed already.
+	public synchronized boolean isParsed() { return properties != null; }
+
+	@Override public Set<Map.Entry<String, String>> entrySet() { return properties().entrySet(); }
+
+	@Override public String get(Object key) { return properties().get(key); }
+
+	@Override public boolean containsKey(Object key) { return properties().containsKey(key); }
+
+	@Override public int size() { return properties().size(); }
+
+	private synchronized Map<String, String> properties() {
+		if (properties == null) properties = Collections.unmodifiableMap(parse());
+		return properties;
+	}
+
+	private Map<String, String> parse() {
+		Map<String, String> properties = new TreeMap<String, String>();
+		if (prefixes != null && !mentions(prefixes)) return properties;
+		try {
+			XMPMeta xmpMeta = XMPMetaFactory.parseFromBuffer(packet);
+			for (XMPPropertyInfo xmpPropertyInfo: xmpMeta)
+				if (xmpPropertyInfo.getPath() != null && !"".equals(xmpPropertyInfo.getValue()) && selected(xmpPropertyInfo.getPath()))
+					properties.put(xmpPropertyInfo.getPath(), xmpPropertyInfo.getValue());
+		} catch (XMPException e) {
+			throw new TiffProcessorRuntimeException(e);
+		}
+		return properties;
+	}
+
+	private boolean selected(String path) {
+		if (prefixes == null) return true;
+		for (String prefix: prefixes) if (path.startsWith(prefix)) return true;
+		return false;
+	}
+
+	/*
+	 * XMP is XML, mostly UTF-8, so namespace URIs in use show up in the packet as they are. Namespaces XMPCore does not know
+	 * about are keyed by the prefix the packet binds them to, so for those the prefix is looked for instead. UTF-16 and UTF-32
+	 * packets are parsed.
+	 */
+	private boolean mentions(String[] prefixes) {
+		if (packet.length > 1 && (packet[0] == 0 || packet[1] == 0 || (packet[0] & 0xFF) >= 0xFE)) return true;
+		String text = new String(packet, StandardCharsets.ISO_8859_1);
+		XMPSchemaRegistry registry = XMPMetaFactory.getSchemaRegistry();
+		for (String prefix: prefixes) {
+			String uri = registry.getNamespaceURI(prefix);
+			if (text.contains(uri == null? prefix : uri)) return true;
+		}
+		return false;
+	}
+
+}
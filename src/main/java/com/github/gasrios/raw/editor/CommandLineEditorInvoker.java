@@ -40,6 +40,12 @@ public class CommandLineEditorInvoker extends DngProcessor<ImageLSH> {
 		this.editor = editor;
 	}
 
-	@Override public void end() throws TiffProcessorException { editor.edit(image); }
+	@Override public void end() throws TiffProcessorException {
+		try {
+			editor.edit(image);
+		} finally {
+			image.close();
+		}
+	}
 
 }
\ No newline at end of file
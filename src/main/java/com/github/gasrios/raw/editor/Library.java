@@ -19,10 +19,12 @@ import java.io.IOException;
 
 import javax.imageio.ImageIO;
 
+import com.github.gasrios.raw.formats.ImageBuffer;
 import com.github.gasrios.raw.formats.ImageCIELCH;
 import com.github.gasrios.raw.formats.ImageCIELUV;
 import com.github.gasrios.raw.formats.ImageCIEXYZ;
 import com.github.gasrios.raw.formats.ImageSRGB;
+import com.github.gasrios.raw.lang.Kernels;
 import com.github.gasrios.raw.lang.Math;
 import com.github.gasrios.raw.swing.Image;
 import com.github.gasrios.raw.swing.ImageFrame;
@@ -50,15 +52,41 @@ public final class Library {
 		new ImageFrame(new Image(image), width, height);
 	}
 
+	/*
+	 * Images are edited one row at a time, copied to planar buffers, so the same code works whatever the storage of the image.
+	 * Images processed in single precision get float buffers, the others double ones. See com.github.gasrios.raw.formats.Storage
+	 * and com.github.gasrios.raw.lang.Kernels.
+	 */
+
 	public static ImageSRGB blackAndWhite(ImageSRGB image) {
 
-		double[][][] im = image.getImage();
+		ImageBuffer im = image.getBuffer();
+
+		if (image.isSinglePrecision()) {
+			float[][] row = new float[3][im.getWidth()];
+			for (int j = 0; j < im.getLength(); j++) {
+				im.getRow(j, row[0], row[1], row[2]);
+				for (int i = 0; i < im.getWidth(); i++) {
+					float average = 0F;
+					for (int k = 0; k < 3; k++) average += row[k][i];
+					for (int k = 0; k < 3; k++) row[k][i] = average/3;
+				}
+				im.setRow(j, row[0], row[1], row[2]);
+			}
+			return image;
+		}
+
+		double[][] row = new double[3][im.getWidth()];
 
-		for (int i = 0; i < im.length; i++) for (int j = 0; j < im[0].length; j ++) {
-			double average = 0D;
-			for (int k = 0; k < 3; k++) average += im[i][j][k];
-			for (int k = 0; k < 3; k++) im[i][j][k] = average/3;
-		};
+		for (int j = 0; j < im.getLength(); j++) {
+			im.getRow(j, row[0], row[1], row[2]);
+			for (int i = 0; i < im.getWidth(); i++) {
+				double average = 0D;
+				for (int k = 0; k < 3; k++) average += row[k][i];
+				for (int k = 0; k < 3; k++) row[k][i] = average/3;
+			}
+			im.setRow(j, row[0], row[1], row[2]);
+		}
 
 		return image;
 
@@ -68,9 +96,25 @@ public final class Library {
 
 	public static ImageCIELCH saturate(ImageCIELCH image, double percentage) {
 
-		double[][][] im = image.getImage();
+		ImageBuffer im = image.getBuffer();
+
+		if (image.isSinglePrecision()) {
+			float[][] row = new float[3][im.getWidth()];
+			for (int j = 0; j < im.getLength(); j++) {
+				im.getRow(j, row[0], row[1], row[2]);
+				Kernels.scale(row[1], (float) (1 + percentage), im.getWidth());
+				im.setRow(j, row[0], row[1], row[2]);
+			}
+			return image;
+		}
+
+		double[][] row = new double[3][im.getWidth()];
 
-		for (int i = 0; i < im.length; i++) for (int j = 0; j < im[0].length; j ++) im[i][j][1] *= (1 + percentage);
+		for (int j = 0; j < im.getLength(); j++) {
+			im.getRow(j, row[0], row[1], row[2]);
+			Kernels.scale(row[1], 1 + percentage, im.getWidth());
+			im.setRow(j, row[0], row[1], row[2]);
+		}
 
 		return image;
 
@@ -79,17 +123,32 @@ public final class Library {
 	// Only works for B&W images.
 	public static ImageSRGB adjustLuminance(ImageSRGB image) {
 
-		double[][][] im = image.getImage();
-		double min = Double.MAX_VALUE, max = Double.MIN_VALUE;
-
-		for (int i = 0; i < im.length; i++) for (int j = 0; j < im[0].length; j ++) {
-			if (min > im[i][j][0]) min = im[i][j][0];
-			if (max < im[i][j][0]) max = im[i][j][0];
+		ImageBuffer im = image.getBuffer();
+
+		if (image.isSinglePrecision()) {
+			float[][] row = new float[3][im.getWidth()];
+			float[] range = luminanceRange(im, row);
+			for (int j = 0; j < im.getLength(); j++) {
+				im.getRow(j, row[0], row[1], row[2]);
+				for (int i = 0; i < im.getWidth(); i++) {
+					float luminance = normalize(row[0][i], range[0], range[1]);
+					for (int k = 0; k < 3; k ++) row[k][i] = luminance;
+				}
+				im.setRow(j, row[0], row[1], row[2]);
+			}
+			return image;
 		}
 
-		for (int i = 0; i < im.length; i++) for (int j = 0; j < im[0].length; j ++) {
-			double luminance = Math.normalize(im[i][j][0], min, max);
-			for (int k = 0; k < 3; k ++) im[i][j][k] = luminance;
+		double[][] row = new double[3][im.getWidth()];
+		double[] range = luminanceRange(im, row);
+
+		for (int j = 0; j < im.getLength(); j++) {
+			im.getRow(j, row[0], row[1], row[2]);
+			for (int i = 0; i < im.getWidth(); i++) {
+				double luminance = Math.normalize(row[0][i], range[0], range[1]);
+				for (int k = 0; k < 3; k ++) row[k][i] = luminance;
+			}
+			im.setRow(j, row[0], row[1], row[2]);
 		}
 
 		return image;
@@ -98,20 +157,60 @@ public final class Library {
 
 	public static ImageCIELUV adjustLuminance(ImageCIELUV image) {
 
-		double[][][] im = image.getImage();
-		double min = Double.MAX_VALUE, max = Double.MIN_VALUE;
-
-		for (int i = 0; i < im.length; i++) for (int j = 0; j < im[0].length; j ++) {
-			if (min > im[i][j][0]) min = im[i][j][0];
-			if (max < im[i][j][0]) max = im[i][j][0];
+		ImageBuffer im = image.getBuffer();
+
+		if (image.isSinglePrecision()) {
+			float[][] row = new float[3][im.getWidth()];
+			float[] range = luminanceRange(im, row);
+			for (int j = 0; j < im.getLength(); j++) {
+				im.getRow(j, row[0], row[1], row[2]);
+				for (int i = 0; i < im.getWidth(); i++) row[0][i] = 100*normalize(row[0][i], range[0], range[1]);
+				im.setRow(j, row[0], row[1], row[2]);
+			}
+			return image;
 		}
 
-		for (int i = 0; i < im.length; i++) for (int j = 0; j < im[0].length; j ++) im[i][j][0] = 100*Math.normalize(im[i][j][0], min, max);
+		double[][] row = new double[3][im.getWidth()];
+		double[] range = luminanceRange(im, row);
+
+		for (int j = 0; j < im.getLength(); j++) {
+			im.getRow(j, row[0], row[1], row[2]);
+			for (int i = 0; i < im.getWidth(); i++) row[0][i] = 100*Math.normalize(row[0][i], range[0], range[1]);
+			im.setRow(j, row[0], row[1], row[2]);
+		}
 
 		return image;
 
 	}
 
+	// Minimum and maximum values of the first channel.
+	private static double[] luminanceRange(ImageBuffer im, double[][] row) {
+		double min = Double.MAX_VALUE, max = Double.MIN_VALUE;
+		for (int j = 0; j < im.getLength(); j++) {
+			im.getRow(j, row[0], row[1], row[2]);
+			for (int i = 0; i < im.getWidth(); i++) {
+				if (min > row[0][i]) min = row[0][i];
+				if (max < row[0][i]) max = row[0][i];
+			}
+		}
+		return new double[] { min, max };
+	}
+
+	private static float[] luminanceRange(ImageBuffer im, float[][] row) {
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for (int j = 0; j < im.getLength(); j++) {
+			im.getRow(j, row[0], row[1], row[2]);
+			for (int i = 0; i < im.getWidth(); i++) {
+				if (min > row[0][i]) min = row[0][i];
+				if (max < row[0][i]) max = row[0][i];
+			}
+		}
+		return new float[] { min, max };
+	}
+
+	// See com.github.gasrios.raw.lang.Math.normalize()
+	private static float normalize(float value, float min, float max) { return value < min? 0F : value > max? 1F : (value-min)/(max-min); }
+
 	private Library() {}
 
 }
\ No newline at end of file
@@ -0,0 +1,53 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.formats;
+
+import com.github.gasrios.raw.lang.Kernels;
+import com.github.gasrios.raw.lang.Math;
+
+/*
+ * Converting camera coordinates to, say, sRGB takes two matrix multiplications, camera to XYZ then XYZ to linear sRGB, before
+ * gamma correction is applied. Matrix multiplication being associative, both matrices can be multiplied once and for all, so
+ * each pixel goes through a single multiplication followed by the non-linear part of the conversion.
+ *
+ * Instances are obtained from com.github.gasrios.raw.formats.ImageCIEXYZ.compile(double[][]).
+ */
+
+public final class ColorTransform {
+
+	private final ImageCIEXYZ image;
+	private final double[][] matrix;
+
+	ColorTransform(ImageCIEXYZ image, double[][] toXYZ) {
+		this.image = image;
+		matrix = image.linear() == null? toXYZ : Math.multiply(image.linear(), toXYZ);
+	}
+
+	public double[][] getMatrix() { return matrix; }
+
+	// pixel is transformed in place, so the only allocation left per pixel is whatever fromLinear() needs.
+	public double[] apply(double[] pixel) { return image.fromLinear(Math.multiply(matrix, pixel, pixel)); }
+
+	// Whole rows in planar layout, transformed in place. See com.github.gasrios.raw.lang.Kernels.
+	public void apply(double[] p0, double[] p1, double[] p2, int length) {
+		Kernels.multiply(matrix, p0, p1, p2, length);
+		image.fromLinear(p0, p1, p2, length);
+	}
+
+	// Same, in single precision. See com.github.gasrios.raw.formats.Storage.FLOAT.
+	public void apply(float[] p0, float[] p1, float[] p2, int length) {
+		Kernels.multiply(matrix, p0, p1, p2, length);
+		image.fromLinear(p0, p1, p2, length);
+	}
+
+}
@@ -0,0 +1,40 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.formats;
+
+/*
+ * See com.github.gasrios.raw.formats.Storage.DOUBLE
+ */
+
+final class DoubleImageBuffer extends ImageBuffer {
+
+	private final double[][][] image;
+
+	DoubleImageBuffer(double[][][] image) {
+		super(image.length, image.length == 0? 0 : image[0].length);
+		this.image = image;
+	}
+
+	double[][][] getImage() { return image; }
+
+	@Override public Storage getStorage() { return Storage.DOUBLE; }
+
+	@Override public double get(int x, int y, int channel) { return image[x][y][channel]; }
+
+	@Override public void set(int x, int y, int channel, double value) { image[x][y][channel] = value; }
+
+	@Override public double[] get(int x, int y) { return image[x][y].clone(); }
+
+	@Override public void set(int x, int y, double[] pixel) { image[x][y] = pixel.clone(); }
+
+}
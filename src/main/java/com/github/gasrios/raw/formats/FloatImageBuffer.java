@@ -0,0 +1,65 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.formats;
+
+/*
+ * See com.github.gasrios.raw.formats.Storage.FLOAT
+ *
+ * One array per row, with the row in planar layout: first channel of all pixels, then second, then third. Rows are copied to
+ * and from planar double buffers with one straight loop per channel, and to and from planar float buffers as they are.
+ */
+
+final class FloatImageBuffer extends ImageBuffer {
+
+	private final float[][] rows;
+
+	FloatImageBuffer(int width, int length) {
+		super(width, length);
+		rows = new float[length][3*width];
+	}
+
+	@Override public Storage getStorage() { return Storage.FLOAT; }
+
+	@Override public double get(int x, int y, int channel) { return rows[y][channel*width + x]; }
+
+	@Override public void set(int x, int y, int channel, double value) { rows[y][channel*width + x] = (float) value; }
+
+	@Override public void getRow(int y, double[] p0, double[] p1, double[] p2) {
+		float[] row = rows[y];
+		for (int x = 0; x < width; x++) p0[x] = row[x];
+		for (int x = 0; x < width; x++) p1[x] = row[width + x];
+		for (int x = 0; x < width; x++) p2[x] = row[2*width + x];
+	}
+
+	@Override public void setRow(int y, double[] p0, double[] p1, double[] p2) {
+		float[] row = rows[y];
+		for (int x = 0; x < width; x++) row[x] = (float) p0[x];
+		for (int x = 0; x < width; x++) row[width + x] = (float) p1[x];
+		for (int x = 0; x < width; x++) row[2*width + x] = (float) p2[x];
+	}
+
+	@Override public void getRow(int y, float[] p0, float[] p1, float[] p2) {
+		float[] row = rows[y];
+		System.arraycopy(row, 0, p0, 0, width);
+		System.arraycopy(row, width, p1, 0, width);
+		System.arraycopy(row, 2*width, p2, 0, width);
+	}
+
+	@Override public void setRow(int y, float[] p0, float[] p1, float[] p2) {
+		float[] row = rows[y];
+		System.arraycopy(p0, 0, row, 0, width);
+		System.arraycopy(p1, 0, row, width, width);
+		System.arraycopy(p2, 0, row, 2*width, width);
+	}
+
+}
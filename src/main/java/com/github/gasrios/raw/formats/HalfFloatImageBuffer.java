@@ -0,0 +1,52 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.formats;
+
+import com.github.gasrios.raw.lang.HalfFloat;
+
+/*
+ * See com.github.gasrios.raw.formats.Storage.HALF_FLOAT
+ *
+ * Same row layout as com.github.gasrios.raw.formats.FloatImageBuffer.
+ */
+
+final class HalfFloatImageBuffer extends ImageBuffer {
+
+	private final short[][] rows;
+
+	HalfFloatImageBuffer(int width, int length) {
+		super(width, length);
+		rows = new short[length][3*width];
+	}
+
+	@Override public Storage getStorage() { return Storage.HALF_FLOAT; }
+
+	@Override public double get(int x, int y, int channel) { return HalfFloat.toFloat(rows[y][channel*width + x]); }
+
+	@Override public void set(int x, int y, int channel, double value) { rows[y][channel*width + x] = HalfFloat.fromFloat((float) value); }
+
+	@Override public void getRow(int y, double[] p0, double[] p1, double[] p2) {
+		short[] row = rows[y];
+		for (int x = 0; x < width; x++) p0[x] = HalfFloat.toFloat(row[x]);
+		for (int x = 0; x < width; x++) p1[x] = HalfFloat.toFloat(row[width + x]);
+		for (int x = 0; x < width; x++) p2[x] = HalfFloat.toFloat(row[2*width + x]);
+	}
+
+	@Override public void setRow(int y, double[] p0, double[] p1, double[] p2) {
+		short[] row = rows[y];
+		for (int x = 0; x < width; x++) row[x] = HalfFloat.fromFloat((float) p0[x]);
+		for (int x = 0; x < width; x++) row[width + x] = HalfFloat.fromFloat((float) p1[x]);
+		for (int x = 0; x < width; x++) row[2*width + x] = HalfFloat.fromFloat((float) p2[x]);
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.formats;
+
+/*
+ * Pixels of an image with three channels, width columns and length rows, as named by TIFF tags ImageWidth and ImageLength.
+ * Storage is left to subclasses, see com.github.gasrios.raw.formats.Storage.
+ *
+ * Single pixel accessors are there for convenience. Anything going over the whole image should use getRow() and setRow(),
+ * which copy a row from and to planar buffers holding at least width elements each. Rows come as double or float planes, the
+ * latter for images processed in single precision (see com.github.gasrios.raw.formats.Storage.FLOAT), which get them from
+ * FLOAT storage without any conversion.
+ */
+
+public abstract class ImageBuffer {
+
+	public static ImageBuffer allocate(Storage storage, int width, int length) { return allocate(storage, Location.HEAP, width, length); }
+
+	public static ImageBuffer allocate(Storage storage, Location location, int width, int length) {
+		if (location != Location.HEAP) return new OffHeapImageBuffer(storage, location, width, length);
+		switch (storage) {
+			case FLOAT			: return new FloatImageBuffer(width, length);
+			case UNSIGNED_SHORT	: return new UnsignedShortImageBuffer(width, length);
+			case HALF_FLOAT		: return new HalfFloatImageBuffer(width, length);
+			default				: return new DoubleImageBuffer(new double[width][length][3]);
+		}
+	}
+
+	/*
+	 * Bytes taken by a buffer, counting array headers and references for buffers on the heap, whose size assumes a 64-bit JVM
+	 * with compressed references, the default for heaps under 32GB.
+	 */
+	public static long size(Storage storage, Location location, int width, int length) {
+		long pixels = (long) width*length;
+		if (location != Location.HEAP) return 3*storage.bytes*pixels;
+		// One array per pixel, one per column and one for the whole image.
+		if (storage == Storage.DOUBLE)
+			return pixels*(ARRAY_HEADER + 3*Double.BYTES + REFERENCE) + width*(ARRAY_HEADER + REFERENCE*length) + ARRAY_HEADER + REFERENCE*width;
+		// One array per row and one for the whole image.
+		return length*(ARRAY_HEADER + 3L*storage.bytes*width) + ARRAY_HEADER + REFERENCE*length;
+	}
+
+	private static final long ARRAY_HEADER = 16, REFERENCE = 4;
+
+	protected final int width, length;
+
+	protected ImageBuffer(int width, int length) {
+		this.width = width;
+		this.length = length;
+	}
+
+	public int getWidth() { return width; }
+
+	public int getLength() { return length; }
+
+	public abstract Storage getStorage();
+
+	public Location getLocation() { return Location.HEAP; }
+
+	// Releases memory held outside the Java heap, if any. The buffer must not be used afterwards.
+	public void close() {}
+
+	public abstract double get(int x, int y, int channel);
+
+	public abstract void set(int x, int y, int channel, double value);
+
+	public double[] get(int x, int y) { return new double[] { get(x, y, 0), get(x, y, 1), get(x, y, 2) }; }
+
+	public void set(int x, int y, double[] pixel) { for (int i = 0; i < 3; i++) set(x, y, i, pixel[i]); }
+
+	public void getRow(int y, double[] p0, double[] p1, double[] p2) {
+		for (int x = 0; x < width; x++) {
+			p0[x] = get(x, y, 0);
+			p1[x] = get(x, y, 1);
+			p2[x] = get(x, y, 2);
+		}
+	}
+
+	public void setRow(int y, double[] p0, double[] p1, double[] p2) {
+		for (int x = 0; x < width; x++) {
+			set(x, y, 0, p0[x]);
+			set(x, y, 1, p1[x]);
+			set(x, y, 2, p2[x]);
+		}
+	}
+
+	public void getRow(int y, float[] p0, float[] p1, float[] p2) {
+		for (int x = 0; x < width; x++) {
+			p0[x] = (float) get(x, y, 0);
+			p1[x] = (float) get(x, y, 1);
+			p2[x] = (float) get(x, y, 2);
+		}
+	}
+
+	public void setRow(int y, float[] p0, float[] p1, float[] p2) {
+		for (int x = 0; x < width; x++) {
+			set(x, y, 0, p0[x]);
+			set(x, y, 1, p1[x]);
+			set(x, y, 2, p2[x]);
+		}
+	}
+
+	// This image in the given storage and location, copied one row at a time. Returns this same buffer if nothing changes.
+	public ImageBuffer to(Storage storage, Location location) {
+		if (storage == getStorage() && location == getLocation()) return this;
+		ImageBuffer buffer = allocate(storage, location, width, length);
+		double[] p0 = new double[width], p1 = new double[width], p2 = new double[width];
+		for (int y = 0; y < length; y++) {
+			getRow(y, p0, p1, p2);
+			buffer.setRow(y, p0, p1, p2);
+		}
+		return buffer;
+	}
+
+}
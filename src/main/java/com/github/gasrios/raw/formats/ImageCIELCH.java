@@ -29,6 +29,16 @@ public class ImageCIELCH extends ImageCIELUV {
 			};
 	}
 
+	@Override protected void fromLinear(double[] l, double[] u, double[] v, int length) {
+		super.fromLinear(l, u, v, length);
+		for (int i = 0; i < length; i++) {
+			double c = java.lang.Math.sqrt(u[i]*u[i] + v[i]*v[i]);
+			double h = java.lang.Math.atan2(v[i], u[i]);
+			u[i] = l[i] == 0D? 0D : c;
+			v[i] = l[i] == 0D? 0D : h;
+		}
+	}
+
 	public int[] toSRGB(double[] pixel) {
 		return super.toSRGB(
 			new double[] {
@@ -39,4 +49,32 @@ public class ImageCIELCH extends ImageCIELUV {
 		);
 	}
 
+	@Override public void toSRGB(double[] l, double[] c, double[] h, int length, int[] rgb) {
+		for (int i = 0; i < length; i++) {
+			double chroma = c[i], hue = h[i];
+			c[i] = chroma*java.lang.Math.cos(hue);
+			h[i] = chroma*java.lang.Math.sin(hue);
+		}
+		super.toSRGB(l, c, h, length, rgb);
+	}
+
+	@Override protected void fromLinear(float[] l, float[] u, float[] v, int length) {
+		super.fromLinear(l, u, v, length);
+		for (int i = 0; i < length; i++) {
+			float c = (float) java.lang.Math.sqrt(u[i]*u[i] + v[i]*v[i]);
+			float h = (float) java.lang.Math.atan2(v[i], u[i]);
+			u[i] = l[i] == 0F? 0F : c;
+			v[i] = l[i] == 0F? 0F : h;
+		}
+	}
+
+	@Override public void toSRGB(float[] l, float[] c, float[] h, int length, int[] rgb) {
+		for (int i = 0; i < length; i++) {
+			float chroma = c[i], hue = h[i];
+			c[i] = chroma*(float) java.lang.Math.cos(hue);
+			h[i] = chroma*(float) java.lang.Math.sin(hue);
+		}
+		super.toSRGB(l, c, h, length, rgb);
+	}
+
 }
\ No newline at end of file
@@ -12,6 +12,8 @@
 
 package com.github.gasrios.raw.formats;
 
+import com.github.gasrios.raw.lang.LookupTable;
+
 /*
  * Color space: CIE 1976 (L*, u*, v*)
  */
@@ -21,7 +23,7 @@ public class ImageCIELUV extends ImageCIEXYZ {
 	public double[] fromXYZ(double[] pixel) {
 		double d = pixel[0]+15D*pixel[1]+3D*pixel[2];
 		if (d == 0D) return new double[] { 0D, 0D, 0D };
-		double L = pixel[1] > ε? 116D*java.lang.Math.pow(pixel[1], 1D/3D)-16D : κ*pixel[1];
+		double L = pixel[1] > ε? 116D*cubeRoot(pixel[1])-16D : κ*pixel[1];
 		return new double[] { L, 13D*L*((4D*pixel[0]/d)-un), 13D*L*((9D*pixel[1]/d)-vn) };
 	}
 
@@ -30,10 +32,89 @@ public class ImageCIELUV extends ImageCIEXYZ {
 		if (pixel[0] == 0D) return super.toSRGB(new double[] { 0D, 0D, 0D });
 		double u = pixel[1]/(13D*pixel[0])+un;
 		double v = pixel[2]/(13D*pixel[0])+vn;
-		double Y = pixel[0] > 8D? java.lang.Math.pow((pixel[0]+16D)/116D, 3D) : pixel[0]*invκ;
+		double t = (pixel[0]+16D)/116D;
+		double Y = pixel[0] > 8D? t*t*t : pixel[0]*invκ;
 		return super.toSRGB(new double[] { Y*(9D*u)/(4D*v), Y, Y*(12D-3D*u-20D*v)/(4D*v) });
 	}
 
+	/*
+	 * Same formulas as above, split in three passes over the row so that only the one computing L* calls cubeRoot(). The first
+	 * one leaves (u', v') in x and z, and Y in y. Pixels with d = 0 get (u', v') set to the reference white, so that u* and v*
+	 * come out as zero, and Y set to zero, so that L* does too.
+	 */
+	@Override protected void fromLinear(double[] x, double[] y, double[] z, int length) {
+		for (int i = 0; i < length; i++) {
+			double d = x[i]+15D*y[i]+3D*z[i];
+			x[i] = d == 0D? un : 4D*x[i]/d;
+			z[i] = d == 0D? vn : 9D*y[i]/d;
+			y[i] = d == 0D? 0D : y[i];
+		}
+		for (int i = 0; i < length; i++) y[i] = y[i] > ε? 116D*cubeRoot(y[i])-16D : κ*y[i];
+		for (int i = 0; i < length; i++) {
+			double L = y[i];
+			y[i] = 13D*L*(x[i]-un);
+			z[i] = 13D*L*(z[i]-vn);
+			x[i] = L;
+		}
+	}
+
+	@Override public void toSRGB(double[] l, double[] u, double[] v, int length, int[] rgb) {
+		for (int i = 0; i < length; i++) {
+			if (l[i] == 0D) {
+				u[i] = v[i] = 0D;
+				continue;
+			}
+			double u_ = u[i]/(13D*l[i])+un;
+			double v_ = v[i]/(13D*l[i])+vn;
+			double t = (l[i]+16D)/116D;
+			double Y = l[i] > 8D? t*t*t : l[i]*invκ;
+			l[i] = Y*(9D*u_)/(4D*v_);
+			u[i] = Y;
+			v[i] = Y*(12D-3D*u_-20D*v_)/(4D*v_);
+		}
+		super.toSRGB(l, u, v, length, rgb);
+	}
+
+	@Override protected void fromLinear(float[] x, float[] y, float[] z, int length) {
+		for (int i = 0; i < length; i++) {
+			float d = x[i]+15F*y[i]+3F*z[i];
+			x[i] = d == 0F? unF : 4F*x[i]/d;
+			z[i] = d == 0F? vnF : 9F*y[i]/d;
+			y[i] = d == 0F? 0F : y[i];
+		}
+		for (int i = 0; i < length; i++) y[i] = y[i] > εF? 116F*(float) cubeRoot(y[i])-16F : κF*y[i];
+		for (int i = 0; i < length; i++) {
+			float L = y[i];
+			y[i] = 13F*L*(x[i]-unF);
+			z[i] = 13F*L*(z[i]-vnF);
+			x[i] = L;
+		}
+	}
+
+	@Override public void toSRGB(float[] l, float[] u, float[] v, int length, int[] rgb) {
+		for (int i = 0; i < length; i++) {
+			if (l[i] == 0F) {
+				u[i] = v[i] = 0F;
+				continue;
+			}
+			float u_ = u[i]/(13F*l[i])+unF;
+			float v_ = v[i]/(13F*l[i])+vnF;
+			float t = (l[i]+16F)/116F;
+			float Y = l[i] > 8F? t*t*t : l[i]*invκF;
+			l[i] = Y*(9F*u_)/(4F*v_);
+			u[i] = Y;
+			v[i] = Y*(12F-3F*u_-20F*v_)/(4F*v_);
+		}
+		super.toSRGB(l, u, v, length, rgb);
+	}
+
+	@Override public Storage getCompactStorage() { return Storage.HALF_FLOAT; }
+
+	// See com.github.gasrios.raw.formats.Transfer. Only called for values above ε.
+	private double cubeRoot(double d) { return transfer == Transfer.LOOKUP_TABLE && d <= 1D? CUBE_ROOT.get(d) : java.lang.Math.cbrt(d); }
+
+	private static final LookupTable CUBE_ROOT = new LookupTable(java.lang.Math::cbrt, 216D/24389D, 1D, 16384);
+
 	static private final double
 
 	// u,v coordinates for D50 reference white. See ftp://law.resource.org/pub/us/cfr/ibr/003/cie.15.2004.tables.xls
@@ -45,4 +126,7 @@ public class ImageCIELUV extends ImageCIEXYZ {
 	κ = 24389D/27D,
 	invκ = 27D/24389D;
 
+	// Same constants, for images processed in single precision.
+	static private final float unF = (float) un, vnF = (float) vn, εF = (float) ε, κF = (float) κ, invκF = (float) invκ;
+
 }
\ No newline at end of file
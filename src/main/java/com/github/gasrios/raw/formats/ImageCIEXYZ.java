@@ -12,22 +12,162 @@
 
 package com.github.gasrios.raw.formats;
 
+import com.github.gasrios.raw.lang.Kernels;
+import com.github.gasrios.raw.lang.LookupTable;
 import com.github.gasrios.raw.lang.Math;
 
 /*
  * Color space: CIE 1931 XYZ
  */
-public class ImageCIEXYZ {
+public class ImageCIEXYZ implements AutoCloseable {
 
 	public double[] fromXYZ(double[] pixel) { return pixel; }
 
-	public int[] toSRGB(double[] pixel) { return to8bits(gammaCorrection(Math.multiply(XYZ_D50ToSRGB, pixel))); }
+	public int[] toSRGB(double[] pixel) {
+		double[] rgb = Math.multiply(XYZ_D50ToSRGB, pixel);
+		return transfer == Transfer.LOOKUP_TABLE? to8bitsSRGB(rgb) : to8bits(gammaCorrection(rgb));
+	}
+
+	/*
+	 * fromXYZ() split in two stages, a matrix (null meaning identity) followed by a non-linear function, so that
+	 * com.github.gasrios.raw.formats.ColorTransform can merge the matrix with whatever linear transformation comes before it.
+	 * For any pixel, fromXYZ(pixel) must be equal to fromLinear(linear() * pixel). Subclasses overriding fromXYZ() must keep
+	 * it that way.
+	 */
+	protected double[][] linear() { return null; }
+
+	protected double[] fromLinear(double[] pixel) { return fromXYZ(pixel); }
+
+	/*
+	 * Planar versions of fromLinear() and toSRGB(), converting a whole row at once: p0, p1 and p2 hold the first, second and
+	 * third channels of length pixels, and are overwritten. toSRGB() packs each pixel as 0xRRGGBB into rgb. See
+	 * com.github.gasrios.raw.lang.Kernels.
+	 *
+	 * Results must be the same as those of the per pixel methods, so subclasses overriding either must override both. The
+	 * color spaces in this package override them with kernels of their own; fromLinear() defaults to calling the per pixel
+	 * method, so subclasses outside this package still get their fromXYZ() called.
+	 */
+	protected void fromLinear(double[] p0, double[] p1, double[] p2, int length) {
+		double[] pixel = new double[3];
+		for (int i = 0; i < length; i++) {
+			pixel[0] = p0[i];
+			pixel[1] = p1[i];
+			pixel[2] = p2[i];
+			double[] result = fromLinear(pixel);
+			p0[i] = result[0];
+			p1[i] = result[1];
+			p2[i] = result[2];
+		}
+	}
+
+	public void toSRGB(double[] p0, double[] p1, double[] p2, int length, int[] rgb) {
+		Kernels.multiply(XYZ_D50ToSRGB, p0, p1, p2, length);
+		if (transfer == Transfer.LOOKUP_TABLE)
+			for (int i = 0; i < length; i++) rgb[i] = to8BitsSRGB(p0[i]) << 16 | to8BitsSRGB(p1[i]) << 8 | to8BitsSRGB(p2[i]);
+		else
+			for (int i = 0; i < length; i++) rgb[i] = to8Bits(gamma(p0[i])) << 16 | to8Bits(gamma(p1[i])) << 8 | to8Bits(gamma(p2[i]));
+	}
+
+	/*
+	 * Single precision versions of the planar methods above, for images processed in single precision. Again, the color spaces
+	 * in this package override them with kernels of their own, and fromLinear() defaults to calling the per pixel method.
+	 */
+	protected void fromLinear(float[] p0, float[] p1, float[] p2, int length) {
+		double[] pixel = new double[3];
+		for (int i = 0; i < length; i++) {
+			pixel[0] = p0[i];
+			pixel[1] = p1[i];
+			pixel[2] = p2[i];
+			double[] result = fromLinear(pixel);
+			p0[i] = (float) result[0];
+			p1[i] = (float) result[1];
+			p2[i] = (float) result[2];
+		}
+	}
+
+	public void toSRGB(float[] p0, float[] p1, float[] p2, int length, int[] rgb) {
+		Kernels.multiply(XYZ_D50ToSRGB, p0, p1, p2, length);
+		if (transfer == Transfer.LOOKUP_TABLE)
+			for (int i = 0; i < length; i++) rgb[i] = to8BitsSRGB(p0[i]) << 16 | to8BitsSRGB(p1[i]) << 8 | to8BitsSRGB(p2[i]);
+		else
+			for (int i = 0; i < length; i++) rgb[i] = to8Bits(gamma(p0[i])) << 16 | to8Bits(gamma(p1[i])) << 8 | to8Bits(gamma(p2[i]));
+	}
+
+	// Transformation from the color space toXYZ maps into to the color space of this image.
+	public ColorTransform compile(double[][] toXYZ) { return new ColorTransform(this, toXYZ); }
+
+	private ImageBuffer buffer;
+
+	public ImageBuffer getBuffer() { return buffer; }
+
+	// The buffer replaced, if a different one, is closed: this image owns its buffer. See close().
+	public void setBuffer(ImageBuffer buffer) {
+		if (this.buffer != null && this.buffer != buffer) this.buffer.close();
+		this.buffer = buffer;
+	}
+
+	// Replaces the current buffer with an empty one, using the storage and location set for this image.
+	public void allocate(int width, int length) {
+		close();
+		buffer = ImageBuffer.allocate(storage, location, width, length);
+	}
+
+	// Releases the memory held by this image. Needed for images stored off heap, harmless otherwise.
+	@Override public void close() {
+		if (buffer != null) buffer.close();
+		buffer = null;
+	}
+
+	// Only available for Storage.DOUBLE and Location.HEAP, whose layout matches this array. Otherwise, use getBuffer().
+	public double[][][] getImage() {
+		if (buffer == null) return null;
+		if (!(buffer instanceof DoubleImageBuffer)) throw new UnsupportedOperationException("Image stored as " + buffer.getStorage() + ", " + buffer.getLocation());
+		return ((DoubleImageBuffer) buffer).getImage();
+	}
 
-	private double[][][] image;
+	public void setImage(double[][][] image) { setBuffer(new DoubleImageBuffer(image)); }
 
-	public double[][][] getImage() { return image; }
+	// See com.github.gasrios.raw.formats.Storage
+	protected Storage storage = Storage.DOUBLE;
 
-	public void setImage(double[][][] image) { this.image = image; }
+	public Storage getStorage() { return storage; }
+
+	// Whether rows of this image are processed as float rather than double. See com.github.gasrios.raw.formats.Storage.
+	public boolean isSinglePrecision() { return storage == Storage.FLOAT; }
+
+	// Images already loaded get converted to the new storage.
+	public void setStorage(Storage storage) {
+		this.storage = storage;
+		convert();
+	}
+
+	// See com.github.gasrios.raw.formats.Location
+	protected Location location = Location.HEAP;
+
+	public Location getLocation() { return location; }
+
+	// Images already loaded get moved to the new location.
+	public void setLocation(Location location) {
+		this.location = location;
+		convert();
+	}
+
+	private void convert() {
+		if (buffer == null) return;
+		ImageBuffer converted = buffer.to(storage, location);
+		if (converted != buffer) buffer.close();
+		buffer = converted;
+	}
+
+	// Smallest storage able to hold this color space. See com.github.gasrios.raw.formats.Storage.
+	public Storage getCompactStorage() { return Storage.UNSIGNED_SHORT; }
+
+	// See com.github.gasrios.raw.formats.Transfer
+	protected Transfer transfer = Transfer.EXACT;
+
+	public Transfer getTransfer() { return transfer; }
+
+	public void setTransfer(Transfer transfer) { this.transfer = transfer; }
 
 	/*
 	 * From http://www.brucelindbloom.com/index.html?Eqn_RGB_XYZ_Matrix.html
@@ -41,17 +181,50 @@ public class ImageCIEXYZ {
 		new double[] {  0.0719453D, -0.2289914D,  1.4052427D }
 	};
 
-	protected static double[] gammaCorrection(double[] d) {
+	protected double[] gammaCorrection(double[] d) {
 		return new double[] { gammaCorrection(d[0]), gammaCorrection(d[1]), gammaCorrection(d[2]) };
 	}
 
+	protected void gammaCorrection(double[] p, int length) {
+		for (int i = 0; i < length; i++) p[i] = gammaCorrection(p[i]);
+	}
+
+	protected void gammaCorrection(float[] p, int length) {
+		for (int i = 0; i < length; i++) p[i] = (float) gammaCorrection(p[i]);
+	}
+
+	private double gammaCorrection(double d) {
+		return transfer == Transfer.LOOKUP_TABLE && d >= 0D && d <= 1D? GAMMA.get(d) : gamma(d);
+	}
+
 	// From http://en.wikipedia.org/wiki/SRGB#The_forward_transformation_.28CIE_xyY_or_CIE_XYZ_to_sRGB.29
-	private static double gammaCorrection(double d) {
+	private static double gamma(double d) {
 		return d <= 0.0031308D? 12.92D*d : 1.055D*java.lang.Math.pow(d, 1D/2.4D) - 0.055D;
 	}
 
+	private static final LookupTable GAMMA = new LookupTable(ImageCIEXYZ::gamma, 0D, 1D, 16384);
+
 	protected static int[] to8bits(double[] rgb) { return new int[] { to8Bits(rgb[0]), to8Bits(rgb[1]), to8Bits(rgb[2]) }; }
 
+	protected static void to8bits(double[] p0, double[] p1, double[] p2, int length, int[] rgb) {
+		for (int i = 0; i < length; i++) rgb[i] = to8Bits(p0[i]) << 16 | to8Bits(p1[i]) << 8 | to8Bits(p2[i]);
+	}
+
+	protected static void to8bits(float[] p0, float[] p1, float[] p2, int length, int[] rgb) {
+		for (int i = 0; i < length; i++) rgb[i] = to8Bits(p0[i]) << 16 | to8Bits(p1[i]) << 8 | to8Bits(p2[i]);
+	}
+
 	private static int to8Bits(double n) { return (int) java.lang.Math.round((n < 0? 0 : n > 1? 1 : n)*255D); }
 
+	// Linear sRGB straight to gamma corrected, 8-bit sRGB.
+	private static int[] to8bitsSRGB(double[] rgb) { return new int[] { to8BitsSRGB(rgb[0]), to8BitsSRGB(rgb[1]), to8BitsSRGB(rgb[2]) }; }
+
+	private static int to8BitsSRGB(double n) { return SRGB_8BITS[(int) ((n < 0? 0 : n > 1? 1 : n)*(SRGB_8BITS.length - 1) + .5D)] & 0xFF; }
+
+	private static final byte[] SRGB_8BITS = new byte[65537];
+
+	static {
+		for (int i = 0; i < SRGB_8BITS.length; i++) SRGB_8BITS[i] = (byte) to8Bits(gamma(i/(double) (SRGB_8BITS.length - 1)));
+	}
+
 }
\ No newline at end of file
@@ -12,6 +12,8 @@
 
 package com.github.gasrios.raw.formats;
 
+import com.github.gasrios.raw.lang.Kernels;
+
 /*
  * Color space: LSH (CIE LCHuv, with chroma C replaced with saturation S = C/L)
  */
@@ -24,4 +26,24 @@ public class ImageLSH extends ImageCIELCH {
 
 	public int[] toSRGB(double[] pixel) { return super.toSRGB(new double[] { pixel[0], pixel[1]*pixel[0], pixel[2] }); }
 
+	@Override protected void fromLinear(double[] l, double[] s, double[] h, int length) {
+		super.fromLinear(l, s, h, length);
+		Kernels.divide(s, l, length);
+	}
+
+	@Override public void toSRGB(double[] l, double[] s, double[] h, int length, int[] rgb) {
+		Kernels.multiply(s, l, length);
+		super.toSRGB(l, s, h, length, rgb);
+	}
+
+	@Override protected void fromLinear(float[] l, float[] s, float[] h, int length) {
+		super.fromLinear(l, s, h, length);
+		Kernels.divide(s, l, length);
+	}
+
+	@Override public void toSRGB(float[] l, float[] s, float[] h, int length, int[] rgb) {
+		Kernels.multiply(s, l, length);
+		super.toSRGB(l, s, h, length, rgb);
+	}
+
 }
\ No newline at end of file
@@ -23,4 +23,24 @@ public class ImageSRGB extends ImageCIEXYZ {
 
 	public int[] toSRGB(double[] pixel)		{ return to8bits(pixel); }
 
+	@Override protected double[][] linear() { return XYZ_D50ToSRGB; }
+
+	@Override protected double[] fromLinear(double[] pixel) { return gammaCorrection(pixel); }
+
+	@Override protected void fromLinear(double[] p0, double[] p1, double[] p2, int length) {
+		gammaCorrection(p0, length);
+		gammaCorrection(p1, length);
+		gammaCorrection(p2, length);
+	}
+
+	@Override public void toSRGB(double[] p0, double[] p1, double[] p2, int length, int[] rgb) { to8bits(p0, p1, p2, length, rgb); }
+
+	@Override protected void fromLinear(float[] p0, float[] p1, float[] p2, int length) {
+		gammaCorrection(p0, length);
+		gammaCorrection(p1, length);
+		gammaCorrection(p2, length);
+	}
+
+	@Override public void toSRGB(float[] p0, float[] p1, float[] p2, int length, int[] rgb) { to8bits(p0, p1, p2, length, rgb); }
+
 }
\ No newline at end of file
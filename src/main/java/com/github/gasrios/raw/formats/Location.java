@@ -0,0 +1,31 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.formats;
+
+/*
+ * Where pixels are stored. See com.github.gasrios.raw.formats.ImageBuffer.
+ *
+ * HEAP keeps them in Java arrays, as usual.
+ *
+ * DIRECT keeps them in direct byte buffers, outside the Java heap: they count against -XX:MaxDirectMemorySize instead of -Xmx,
+ * and the garbage collector never has to copy or scan them.
+ *
+ * MAPPED keeps them in a scratch file in java.io.tmpdir, memory mapped, so the operating system pages them in and out as
+ * needed. Images larger than physical memory can be processed this way, as long as they are processed one row at a time.
+ *
+ * Off heap images are split in bands of rows, each one at most Integer.MAX_VALUE bytes long, so there is no limit on image size
+ * other than the 2^31 limit on width and length. Their memory is released as soon as they are closed (see
+ * com.github.gasrios.raw.formats.ImageCIEXYZ.close()), without waiting for a garbage collection.
+ */
+
+public enum Location { HEAP, DIRECT, MAPPED }
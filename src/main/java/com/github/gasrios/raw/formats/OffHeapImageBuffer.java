@@ -0,0 +1,266 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.formats;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.github.gasrios.raw.lang.Buffers;
+import com.github.gasrios.raw.lang.HalfFloat;
+
+/*
+ * See com.github.gasrios.raw.formats.Location.DIRECT and com.github.gasrios.raw.formats.Location.MAPPED
+ *
+ * Rows use the same layout and the same encodings as their on heap counterparts, com.github.gasrios.raw.formats.FloatImageBuffer
+ * and the like, in native byte order. Each band is read and written through a view matching the storage of the image.
+ *
+ * close() frees bands right away rather than waiting for the garbage collector, after which touching them would crash the JVM
+ * instead of throwing an exception. Accessors hold a read lock and close() the write lock, so close() waits for accesses in
+ * progress, and accesses coming after it throw IllegalStateException. Callers must still not close a buffer other threads are
+ * using: the lock only turns that mistake into an exception. Taking a lock per access is one more reason to go through
+ * getRow() and setRow() rather than single pixel accessors.
+ */
+
+final class OffHeapImageBuffer extends ImageBuffer {
+
+	private final Storage storage;
+	private final Location location;
+
+	private final int rowsPerBand, rowElements;
+
+	private ByteBuffer[] bands;
+	private DoubleBuffer[] doubles;
+	private FloatBuffer[] floats;
+	private ShortBuffer[] shorts;
+
+	private Path file;
+
+	// Guards bands and their views against close(). See above.
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	OffHeapImageBuffer(Storage storage, Location location, int width, int length) {
+
+		super(width, length);
+		this.storage = storage;
+		this.location = location;
+
+		rowElements = 3*width;
+		int rowBytes = java.lang.Math.max(1, rowElements*storage.bytes);
+		rowsPerBand = java.lang.Math.max(1, Integer.MAX_VALUE/rowBytes);
+
+		bands = new ByteBuffer[(length + rowsPerBand - 1)/rowsPerBand];
+
+		try {
+			if (location == Location.MAPPED) {
+				file = Files.createTempFile("raw", ".image");
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+					for (int i = 0; i < bands.length; i++)
+						bands[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i*rowsPerBand*rowBytes, (long) rows(i)*rowBytes);
+				}
+			} else {
+				for (int i = 0; i < bands.length; i++) bands[i] = ByteBuffer.allocateDirect(rows(i)*rowBytes);
+			}
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		} catch (RuntimeException | OutOfMemoryError e) {
+			close();
+			throw e;
+		}
+
+		for (ByteBuffer band: bands) band.order(ByteOrder.nativeOrder());
+
+		switch (storage) {
+			case DOUBLE:
+				doubles = new DoubleBuffer[bands.length];
+				for (int i = 0; i < bands.length; i++) doubles[i] = bands[i].asDoubleBuffer();
+				break;
+			case FLOAT:
+				floats = new FloatBuffer[bands.length];
+				for (int i = 0; i < bands.length; i++) floats[i] = bands[i].asFloatBuffer();
+				break;
+			default:
+				shorts = new ShortBuffer[bands.length];
+				for (int i = 0; i < bands.length; i++) shorts[i] = bands[i].asShortBuffer();
+		}
+
+	}
+
+	@Override public Storage getStorage() { return storage; }
+
+	@Override public Location getLocation() { return location; }
+
+	@Override public double get(int x, int y, int channel) {
+		lock.readLock().lock();
+		try {
+			int band = band(y), i = (y%rowsPerBand)*rowElements + channel*width + x;
+			switch (storage) {
+				case DOUBLE			: return doubles[band].get(i);
+				case FLOAT			: return floats[band].get(i);
+				case UNSIGNED_SHORT	: return UnsignedShortImageBuffer.decode(shorts[band].get(i));
+				default				: return HalfFloat.toFloat(shorts[band].get(i));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override public void set(int x, int y, int channel, double value) {
+		lock.readLock().lock();
+		try {
+			int band = band(y), i = (y%rowsPerBand)*rowElements + channel*width + x;
+			switch (storage) {
+				case DOUBLE			: doubles[band].put(i, value);									break;
+				case FLOAT			: floats[band].put(i, (float) value);							break;
+				case UNSIGNED_SHORT	: shorts[band].put(i, UnsignedShortImageBuffer.encode(value));	break;
+				default				: shorts[band].put(i, HalfFloat.fromFloat((float) value));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override public void getRow(int y, double[] p0, double[] p1, double[] p2) {
+		lock.readLock().lock();
+		try {
+			int band = band(y), offset = (y%rowsPerBand)*rowElements;
+			double[][] planes = new double[][] { p0, p1, p2 };
+			for (int c = 0; c < 3; c++, offset += width) {
+				double[] p = planes[c];
+				switch (storage) {
+					case DOUBLE:
+						DoubleBuffer d = doubles[band];
+						for (int x = 0; x < width; x++) p[x] = d.get(offset + x);
+						break;
+					case FLOAT:
+						FloatBuffer f = floats[band];
+						for (int x = 0; x < width; x++) p[x] = f.get(offset + x);
+						break;
+					case UNSIGNED_SHORT:
+						ShortBuffer u = shorts[band];
+						for (int x = 0; x < width; x++) p[x] = UnsignedShortImageBuffer.decode(u.get(offset + x));
+						break;
+					default:
+						ShortBuffer h = shorts[band];
+						for (int x = 0; x < width; x++) p[x] = HalfFloat.toFloat(h.get(offset + x));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override public void setRow(int y, double[] p0, double[] p1, double[] p2) {
+		lock.readLock().lock();
+		try {
+			int band = band(y), offset = (y%rowsPerBand)*rowElements;
+			double[][] planes = new double[][] { p0, p1, p2 };
+			for (int c = 0; c < 3; c++, offset += width) {
+				double[] p = planes[c];
+				switch (storage) {
+					case DOUBLE:
+						DoubleBuffer d = doubles[band];
+						for (int x = 0; x < width; x++) d.put(offset + x, p[x]);
+						break;
+					case FLOAT:
+						FloatBuffer f = floats[band];
+						for (int x = 0; x < width; x++) f.put(offset + x, (float) p[x]);
+						break;
+					case UNSIGNED_SHORT:
+						ShortBuffer u = shorts[band];
+						for (int x = 0; x < width; x++) u.put(offset + x, UnsignedShortImageBuffer.encode(p[x]));
+						break;
+					default:
+						ShortBuffer h = shorts[band];
+						for (int x = 0; x < width; x++) h.put(offset + x, HalfFloat.fromFloat((float) p[x]));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override public void getRow(int y, float[] p0, float[] p1, float[] p2) {
+		lock.readLock().lock();
+		try {
+			if (storage != Storage.FLOAT) {
+				super.getRow(y, p0, p1, p2);
+				return;
+			}
+			int band = band(y), offset = (y%rowsPerBand)*rowElements;
+			FloatBuffer f = floats[band];
+			for (int x = 0; x < width; x++) p0[x] = f.get(offset + x);
+			for (int x = 0; x < width; x++) p1[x] = f.get(offset + width + x);
+			for (int x = 0; x < width; x++) p2[x] = f.get(offset + 2*width + x);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override public void setRow(int y, float[] p0, float[] p1, float[] p2) {
+		lock.readLock().lock();
+		try {
+			if (storage != Storage.FLOAT) {
+				super.setRow(y, p0, p1, p2);
+				return;
+			}
+			int band = band(y), offset = (y%rowsPerBand)*rowElements;
+			FloatBuffer f = floats[band];
+			for (int x = 0; x < width; x++) f.put(offset + x, p0[x]);
+			for (int x = 0; x < width; x++) f.put(offset + width + x, p1[x]);
+			for (int x = 0; x < width; x++) f.put(offset + 2*width + x, p2[x]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// Views must not outlive the bands they were taken from, so they are dropped first.
+	@Override public void close() {
+		lock.writeLock().lock();
+		try {
+			if (bands == null) return;
+			doubles = null;
+			floats = null;
+			shorts = null;
+			for (ByteBuffer band: bands) Buffers.free(band);
+			bands = null;
+			if (file != null) try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				file.toFile().deleteOnExit();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// Called with the read lock held.
+	private int band(int y) {
+		if (bands == null) throw new IllegalStateException("Image buffer closed");
+		return y/rowsPerBand;
+	}
+
+	private int rows(int band) { return java.lang.Math.min(rowsPerBand, length - band*rowsPerBand); }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.formats;
+
+/*
+ * How pixels are stored between processing steps. See com.github.gasrios.raw.formats.ImageBuffer.
+ *
+ * DOUBLE keeps one double per channel, 24 bytes per pixel, laid out as image[x][y][channel] so that it can be handed out by
+ * com.github.gasrios.raw.formats.ImageCIEXYZ.getImage().
+ *
+ * FLOAT keeps one float per channel, 12 bytes per pixel. Relative rounding error is at most 2^-24, 6E-8, far below the noise
+ * of any sensor: DNG sensor levels have at most 16 significant bits.
+ *
+ * UNSIGNED_SHORT keeps one 16-bit fixed point number per channel, 6 bytes per pixel, mapping [0, 1] to [0, 65535]. Values
+ * outside [0, 1] are clipped, so it only suits color spaces whose channels are normalized to that range, sRGB and XYZ (whose
+ * channels can only go beyond it for colors out of the sRGB gamut, which get clipped when displayed anyway). Step size is
+ * 1.5E-5, 256 times finer than 8-bit output.
+ *
+ * HALF_FLOAT keeps one IEEE 754 half precision number per channel, 6 bytes per pixel, with 11 significant bits: relative
+ * error up to 4.9E-4, a twentieth of an L* unit for the brightest pixels. Unlike UNSIGNED_SHORT it handles negative and
+ * unbounded values, so it suits CIELUV, CIELCH and LSH. It is meant for keeping finished images around rather than for
+ * editing: when rendering to 8-bit sRGB about one pixel in eight comes out off, by up to 3 code values. See
+ * com.github.gasrios.raw.lang.HalfFloat.
+ *
+ * com.github.gasrios.raw.formats.ImageCIEXYZ.getCompactStorage() tells which of the two suits a given color space.
+ *
+ * Computations are made over one row at a time (see com.github.gasrios.raw.lang.Kernels). Images stored as FLOAT are also
+ * processed in single precision: color conversion, rendering and com.github.gasrios.raw.editor.Library operations work on
+ * float rows, handed over to and from the buffer as they are. See com.github.gasrios.raw.formats.ImageCIEXYZ.isSinglePrecision().
+ * Images in any other storage are processed in double.
+ */
+
+public enum Storage {
+
+	DOUBLE(Double.BYTES), FLOAT(Float.BYTES), UNSIGNED_SHORT(Short.BYTES), HALF_FLOAT(Short.BYTES);
+
+	// Bytes per channel.
+	public final int bytes;
+
+	Storage(int bytes) { this.bytes = bytes; }
+
+}
@@ -0,0 +1,29 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.formats;
+
+/*
+ * How the non-linear transfer functions used when converting between color spaces are computed.
+ *
+ * EXACT calls java.lang.Math for every pixel.
+ *
+ * LOOKUP_TABLE interpolates values from tables with 16384 intervals over [0, 1] (see com.github.gasrios.raw.lang.LookupTable),
+ * falling back to EXACT for values out of that range. Maximum errors, measured against EXACT:
+ *
+ * - sRGB gamma correction: 3.5E-6, about a thousandth of an 8-bit step;
+ * - CIE L* cube root: 2.7E-7, or 3.1E-5 in L* units;
+ * - linear to 8-bit sRGB, when displaying or saving images: 1 code value. A 65536 entry table maps linear values straight to
+ *   gamma corrected 8-bit ones, skipping both gamma correction and rounding. About 0.3% of pixels come out 1 code value off.
+ */
+
+public enum Transfer { EXACT, LOOKUP_TABLE }
@@ -0,0 +1,56 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.formats;
+
+/*
+ * See com.github.gasrios.raw.formats.Storage.UNSIGNED_SHORT
+ *
+ * Same row layout as com.github.gasrios.raw.formats.FloatImageBuffer.
+ */
+
+final class UnsignedShortImageBuffer extends ImageBuffer {
+
+	private static final double SCALE = 65535D, INVERSE_SCALE = 1D/SCALE;
+
+	private final short[][] rows;
+
+	UnsignedShortImageBuffer(int width, int length) {
+		super(width, length);
+		rows = new short[length][3*width];
+	}
+
+	@Override public Storage getStorage() { return Storage.UNSIGNED_SHORT; }
+
+	@Override public double get(int x, int y, int channel) { return decode(rows[y][channel*width + x]); }
+
+	@Override public void set(int x, int y, int channel, double value) { rows[y][channel*width + x] = encode(value); }
+
+	@Override public void getRow(int y, double[] p0, double[] p1, double[] p2) {
+		short[] row = rows[y];
+		for (int x = 0; x < width; x++) p0[x] = (row[x] & 0xFFFF)*INVERSE_SCALE;
+		for (int x = 0; x < width; x++) p1[x] = (row[width + x] & 0xFFFF)*INVERSE_SCALE;
+		for (int x = 0; x < width; x++) p2[x] = (row[2*width + x] & 0xFFFF)*INVERSE_SCALE;
+	}
+
+	@Override public void setRow(int y, double[] p0, double[] p1, double[] p2) {
+		short[] row = rows[y];
+		for (int x = 0; x < width; x++) row[x] = encode(p0[x]);
+		for (int x = 0; x < width; x++) row[width + x] = encode(p1[x]);
+		for (int x = 0; x < width; x++) row[2*width + x] = encode(p2[x]);
+	}
+
+	static short encode(double value) { return (short) (int) ((value < 0D? 0D : value > 1D? 1D : value)*SCALE + .5D); }
+
+	static double decode(short value) { return (value & 0xFFFF)*INVERSE_SCALE; }
+
+}
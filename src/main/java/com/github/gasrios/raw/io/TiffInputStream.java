@@ -18,14 +18,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
 
 import com.github.gasrios.raw.data.CanonMakerNoteTag;
 import com.github.gasrios.raw.data.InteroperabilityTag;
 import com.github.gasrios.raw.data.MakerNoteTag;
 import com.github.gasrios.raw.data.Tag;
 import com.github.gasrios.raw.data.Type;
+import com.github.gasrios.raw.lang.CancellationToken;
 import com.github.gasrios.raw.lang.RATIONAL;
 import com.github.gasrios.raw.lang.SRATIONAL;
 import com.github.gasrios.raw.lang.TiffProcessorException;
@@ -64,16 +66,48 @@ import com.github.gasrios.raw.lang.TiffProcessorException;
 
 public class TiffInputStream extends BufferedInputStream {
 
-	private static final Map<Integer, Tag> TAGS = new HashMap<Integer, Tag>();
-	private static final Map<Integer, InteroperabilityTag> INTEROPERABILITY_TAGS = new HashMap<Integer, InteroperabilityTag>();
-	private static final Map<Integer, CanonMakerNoteTag> MAKERNOTE_TAGS = new HashMap<Integer, CanonMakerNoteTag>();
+	/*
+	 * One slot per possible tag number (tag numbers are SHORT) in each scope, holding known tags from the start and unknown
+	 * ones from the first time they are seen, so the same Tag is returned for the same number from then on. Looking tags up
+	 * while scanning IFDs takes an array access, without boxing tag numbers or creating tags.
+	 */
+	private static final class TagTable<T extends Tag> {
+
+		private final AtomicReferenceArray<T> tags = new AtomicReferenceArray<T>(0x10000);
+		private final IntFunction<T> unknown;
+
+		private TagTable(T[] known, IntFunction<T> unknown) {
+			for (T tag: known) tags.set(tag.number, tag);
+			this.unknown = unknown;
+		}
+
+		private T get(int number) {
+			T tag = tags.get(number);
+			if (tag != null) return tag;
+			// Threads seeing the same unknown number at once all get the tag created first.
+			tags.compareAndSet(number, null, unknown.apply(number));
+			return tags.get(number);
+		}
 
-	static {
-		for (Tag tag: Tag.values()) TAGS.put(tag.number, tag);
-		for (InteroperabilityTag tag: InteroperabilityTag.values()) INTEROPERABILITY_TAGS.put(tag.number, tag);
-		for (CanonMakerNoteTag tag: CanonMakerNoteTag.values()) MAKERNOTE_TAGS.put(tag.number, tag);
 	}
 
+	private static final TagTable<Tag> TAGS = new TagTable<Tag>(Tag.values(), number -> new Tag(Integer.toString(number), number));
+
+	private static final TagTable<InteroperabilityTag> INTEROPERABILITY_TAGS = new TagTable<InteroperabilityTag>(
+		InteroperabilityTag.values(), number -> new InteroperabilityTag(Integer.toString(number), number)
+	);
+
+	private static final TagTable<MakerNoteTag> MAKERNOTE_TAGS = new TagTable<MakerNoteTag>(
+		CanonMakerNoteTag.values(), number -> new CanonMakerNoteTag(Integer.toString(number), number)
+	);
+
+	// Tags for numbers, the same ones readTag(), readInteroperabilityTag() and readMakerNoteTag() return.
+	public static Tag tag(int number) { return TAGS.get(number); }
+
+	public static InteroperabilityTag interoperabilityTag(int number) { return INTEROPERABILITY_TAGS.get(number); }
+
+	public static MakerNoteTag makerNoteTag(int number) { return MAKERNOTE_TAGS.get(number); }
+
 	public static synchronized int toInt(short[] buffer, ByteOrder byteOrder) {
 		return byteOrder.equals(ByteOrder.LITTLE_ENDIAN)? (buffer[1] << 8) + buffer[0] : (buffer[0] << 8) + buffer[1];
 	}
@@ -91,10 +125,25 @@ public class TiffInputStream extends BufferedInputStream {
 
 	public ByteOrder getByteOrder() { return byteOrder; }
 
-	public TiffInputStream(InputStream in) throws TiffProcessorException, IOException {
+	// Absolute offset of the next byte to be read.
+	public synchronized long getPosition() { return currentPosition; }
+
+	private final CancellationToken cancellation;
+
+	public CancellationToken getCancellationToken() { return cancellation; }
+
+	// Stream a fork reads from, null for streams reading from the file themselves. See fork().
+	private final TiffInputStream source;
+
+	public TiffInputStream(InputStream in) throws TiffProcessorException, IOException { this(in, new CancellationToken()); }
+
+	public TiffInputStream(InputStream in, CancellationToken cancellation) throws TiffProcessorException, IOException {
 
 		super(in);
 
+		this.cancellation = cancellation;
+		source = null;
+
 		/*
 		 * See http://docs.oracle.com/javase/7/docs/api/java/io/FilterInputStream.html#mark(int)
 		 *
@@ -148,6 +197,15 @@ public class TiffInputStream extends BufferedInputStream {
 	// Random access support.
 	public synchronized void seek(long offset) throws IOException {
 
+		// Forks drop what they have buffered and go on reading from the new position. See fork().
+		if (source != null) {
+			pos = count = 0;
+			markpos = -1;
+			((Fork) in).position = offset;
+			currentPosition = offset;
+			return;
+		}
+
 		// Calling reset here takes us back to the beginning of the file.
 		super.reset();
 
@@ -190,9 +248,12 @@ public class TiffInputStream extends BufferedInputStream {
 	 * Returns: the total number of bytes read into the buffer, or -1 if there is no more data because the end of the stream
 	 * has been reached.
 	 */
-	public synchronized int read(short[] buffer) throws IOException {
+	public synchronized int read(short[] buffer) throws IOException { return read(buffer, buffer.length); }
+
+	// Same as read(short[]), reading at most length bytes, for buffers longer than what they are meant to hold.
+	public synchronized int read(short[] buffer, int length) throws IOException {
 
-		if (buffer.length == 0) return 0;
+		if (length == 0) return 0;
 
 		short byteRead = (short) read();
 		if (byteRead == -1) return -1;
@@ -200,7 +261,7 @@ public class TiffInputStream extends BufferedInputStream {
 		buffer[0] = byteRead;
 
 		int numberOfBytesRead = 1;
-		while (numberOfBytesRead < buffer.length) {
+		while (numberOfBytesRead < length) {
 			if ((byteRead = (short) read()) == -1) break;
 			buffer[numberOfBytesRead++] = byteRead;
 		}
@@ -211,6 +272,109 @@ public class TiffInputStream extends BufferedInputStream {
 
 	}
 
+	// Reads exactly length bytes into buffer, as they are, in bulk.
+	public synchronized void readFully(byte[] buffer, int length) throws IOException {
+		int numberOfBytesRead = 0;
+		while (numberOfBytesRead < length) {
+			int n = read(buffer, numberOfBytesRead, length - numberOfBytesRead);
+			if (n == -1) throw new EOFException();
+			numberOfBytesRead += n;
+		}
+		currentPosition += numberOfBytesRead;
+	}
+
+	/*
+	 * A stream over the same file with a position of its own, starting where this stream is, so several threads may read
+	 * different parts of the file at once (see com.github.gasrios.raw.data.ImageFileDirectoryLoader.load(Executor)). Bytes
+	 * come from this stream, which reads them from the file the first time any fork asks for them, so the file itself is still
+	 * read once, from start to end.
+	 *
+	 * Unlike this stream, forks do not keep everything from the beginning of the file: they seek by moving to where bytes are
+	 * in the buffer of this stream, copying only what they read, a buffer full at a time, and their slices are views of that
+	 * same buffer. They share the byte order and cancellation token of this stream.
+	 */
+	public TiffInputStream fork() throws IOException { return new TiffInputStream(source == null? this : source, getPosition()); }
+
+	private TiffInputStream(TiffInputStream source, long position) throws IOException {
+		super(new Fork(source));
+		this.source = source;
+		cancellation = source.cancellation;
+		byteOrder = source.byteOrder;
+		seek(position);
+	}
+
+	private static final class Fork extends InputStream {
+
+		private final TiffInputStream source;
+		private long position = 0;
+
+		private Fork(TiffInputStream source) { this.source = source; }
+
+		@Override public long skip(long n) {
+			position += n;
+			return n;
+		}
+
+		@Override public int read() throws IOException {
+			byte[] buffer = new byte[1];
+			return read(buffer, 0, 1) == -1? -1 : buffer[0] & 0xFF;
+		}
+
+		@Override public int read(byte[] buffer, int offset, int length) throws IOException {
+			int numberOfBytesRead = source.read(position, buffer, offset, length);
+			if (numberOfBytesRead > 0) position += numberOfBytesRead;
+			return numberOfBytesRead;
+		}
+
+	}
+
+	// Reads up to length bytes found at position, preserving the current position. See fork().
+	private synchronized int read(long position, byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		long current = currentPosition;
+		try {
+			seek(position);
+			return super.read(buffer, offset, length);
+		} finally {
+			seek(current);
+		}
+	}
+
+	/*
+	 * Read only view of length bytes starting at offset, in the byte order of the file, without copying them: everything from
+	 * the beginning of the file is kept in the buffer of this stream (see the constructor), so those bytes are already there,
+	 * or get there when skipped over, at the same positions they have in the file. The current position is preserved.
+	 *
+	 * Views keep the buffer they point into from being garbage collected, even after it gets replaced by a larger one: as the
+	 * buffer grows, earlier views may pin arrays adding up to about the size of the file read so far. So values shorter than
+	 * SLICE_THRESHOLD, for which a view saves little, are copied instead, and only larger ones are views.
+	 */
+	public static final int SLICE_THRESHOLD = 1 << 16;
+
+	public synchronized ByteBuffer slice(long offset, int length) throws IOException {
+		if (source != null) return source.slice(offset, length);
+		long position = currentPosition;
+		seek(offset);
+		long remaining = length;
+		while (remaining > 0) {
+			long skipped = super.skip(remaining);
+			if (skipped <= 0) throw new EOFException();
+			remaining -= skipped;
+		}
+		ByteBuffer slice = length < SLICE_THRESHOLD?
+			ByteBuffer.wrap(Arrays.copyOfRange(buf, (int) offset, (int) offset + length)).asReadOnlyBuffer().order(byteOrder):
+			ByteBuffer.wrap(buf, (int) offset, length).slice().asReadOnlyBuffer().order(byteOrder);
+		seek(position);
+		return slice;
+	}
+
+	// Reads length bytes at once, to be decoded through the typed views of a ByteBuffer in the byte order of the file.
+	public synchronized ByteBuffer readBuffer(int length) throws IOException {
+		byte[] buffer = new byte[length];
+		readFully(buffer, length);
+		return ByteBuffer.wrap(buffer).order(byteOrder);
+	}
+
 	/*
 	 * Methods that read numeric types
 	 */
@@ -258,9 +422,10 @@ public class TiffInputStream extends BufferedInputStream {
 	 * TIFF's SHORT type, a 2-byte unsigned integer, must be read as a 4-byte int in order to preserve sign.
 	 */
 	public synchronized int readSHORT() throws IOException {
-		short[] buffer = new short[2];
-		if (read(buffer) != 2) throw new EOFException();
-		return toInt(buffer, byteOrder);
+		int first = read(), second = read();
+		if (second == -1) throw new EOFException();
+		currentPosition += 2;
+		return byteOrder.equals(ByteOrder.LITTLE_ENDIAN)? (second << 8) + first : (first << 8) + second;
 	}
 
 	/*
@@ -324,21 +489,15 @@ public class TiffInputStream extends BufferedInputStream {
 	 */
 
 	public synchronized Tag readTag() throws TiffProcessorException, IOException {
-		int tag = readSHORT();
-		if (TAGS.containsKey(tag)) return TAGS.get(tag);
-		else return new Tag(Integer.toString(tag), tag);
+		return TAGS.get(readSHORT());
 	}
 
 	public synchronized InteroperabilityTag readInteroperabilityTag() throws TiffProcessorException, IOException {
-		int tag = readSHORT();
-		if (INTEROPERABILITY_TAGS.containsKey(tag)) return INTEROPERABILITY_TAGS.get(tag);
-		else return new InteroperabilityTag(Integer.toString(tag), tag);
+		return INTEROPERABILITY_TAGS.get(readSHORT());
 	}
 
 	public synchronized MakerNoteTag readMakerNoteTag() throws TiffProcessorException, IOException {
-		int tag = readSHORT();
-		if (MAKERNOTE_TAGS.containsKey(tag)) return MAKERNOTE_TAGS.get(tag);
-		else return new CanonMakerNoteTag(Integer.toString(tag), tag);
+		return MAKERNOTE_TAGS.get(readSHORT());
 	}
 
 	public synchronized Type readType() throws TiffProcessorException, IOException {
@@ -0,0 +1,150 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.lang;
+
+import java.util.ArrayDeque;
+import java.util.function.IntFunction;
+
+/*
+ * Recycles large arrays, so processing many files does not keep the garbage collector busy allocating and clearing strip
+ * buffers and rows of pixels for each of them.
+ *
+ * Arrays are grouped in size classes, powers of two from 2¹² to 2³⁰ elements: asking for an array returns one of the class
+ * its length falls in, so it may be longer than asked for. Smaller arrays are cheap enough to just allocate, larger ones, and
+ * those too large for a stripe to hold, are not pooled: they are allocated with the exact length asked for.
+ *
+ * The pool is split in stripes, one per available processor, each holding at most its share of capacity bytes, so threads
+ * working on different files seldom wait for each other. Threads take arrays from, and give them back to, the stripe their id
+ * falls in, looking into the others only when their own has none of the size asked for. Arrays released to a full stripe are
+ * left to the garbage collector.
+ *
+ * Arrays taken from a pool hold whatever was written to them before. Released arrays must not be used anymore.
+ */
+
+public final class ArrayPool {
+
+	// Shared by all processors unless told otherwise.
+	public static final ArrayPool SHARED = new ArrayPool(64L << 20);
+
+	private static final int MIN_CLASS = 12, MAX_CLASS = 30;
+
+	private final Stripe[] stripes;
+
+	public ArrayPool(long capacity) { this(capacity, Runtime.getRuntime().availableProcessors()); }
+
+	public ArrayPool(long capacity, int stripes) {
+		if (stripes <= 0) throw new IllegalArgumentException("Number of stripes must be positive: " + stripes);
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) this.stripes[i] = new Stripe(capacity/stripes);
+	}
+
+	public byte[] bytes(int length) { return take(length, BYTES); }
+
+	public void release(byte[] array) { if (array != null) give(array, array.length, BYTES); }
+
+	public double[] doubles(int length) { return take(length, DOUBLES); }
+
+	public void release(double[] array) { if (array != null) give(array, array.length, DOUBLES); }
+
+	public float[] floats(int length) { return take(length, FLOATS); }
+
+	public void release(float[] array) { if (array != null) give(array, array.length, FLOATS); }
+
+	// Bytes currently held by the pool.
+	public long getRetained() {
+		long retained = 0;
+		for (Stripe stripe: stripes) synchronized (stripe) { retained += stripe.retained; }
+		return retained;
+	}
+
+	// Lets go of all arrays held.
+	public void clear() {
+		for (Stripe stripe: stripes) synchronized (stripe) {
+			for (FreeList[] free: stripe.free) for (int i = MIN_CLASS; i <= MAX_CLASS; i++) free[i].clear();
+			stripe.retained = 0;
+		}
+	}
+
+	private static final class Type<A> {
+
+		private final int index, elementSize;
+		private final IntFunction<A> allocator;
+
+		private Type(int index, int elementSize, IntFunction<A> allocator) {
+			this.index = index;
+			this.elementSize = elementSize;
+			this.allocator = allocator;
+		}
+
+	}
+
+	private static final Type<byte[]>	BYTES	= new Type<byte[]>(0, 1, byte[]::new);
+	private static final Type<double[]>	DOUBLES	= new Type<double[]>(1, 8, double[]::new);
+	private static final Type<float[]>	FLOATS	= new Type<float[]>(2, 4, float[]::new);
+
+	private static final class Stripe {
+
+		private final long capacity;
+
+		// Free arrays per type and size class, and bytes they add up to. Guarded by this.
+		private final FreeList[][] free = new FreeList[3][MAX_CLASS + 1];
+		private long retained = 0;
+
+		private Stripe(long capacity) {
+			this.capacity = capacity;
+			for (FreeList[] type: free) for (int i = MIN_CLASS; i <= MAX_CLASS; i++) type[i] = new FreeList();
+		}
+
+	}
+
+	// Not generic, so that arrays of them can be created.
+	private static final class FreeList extends ArrayDeque<Object> { private static final long serialVersionUID = -3217856478103528061L; }
+
+	private static int sizeClass(int length) { return length <= 1? 0 : 32 - Integer.numberOfLeadingZeros(length - 1); }
+
+	private int home() { return (int) (Thread.currentThread().getId() % stripes.length); }
+
+	@SuppressWarnings("unchecked")
+	private <A> A take(int length, Type<A> type) {
+		int sizeClass = sizeClass(length);
+		// Arrays no stripe could hold are never kept, so there is no point in rounding their length up.
+		if (sizeClass < MIN_CLASS || sizeClass > MAX_CLASS || (long) type.elementSize << sizeClass > stripes[0].capacity)
+			return type.allocator.apply(length);
+		int home = home();
+		for (int i = 0; i < stripes.length; i++) {
+			Stripe stripe = stripes[(home + i) % stripes.length];
+			synchronized (stripe) {
+				Object array = stripe.free[type.index][sizeClass].poll();
+				if (array != null) {
+					stripe.retained -= (long) type.elementSize << sizeClass;
+					return (A) array;
+				}
+			}
+		}
+		return type.allocator.apply(1 << sizeClass);
+	}
+
+	// Only arrays this pool could have handed out are kept.
+	private <A> void give(A array, int length, Type<A> type) {
+		int sizeClass = sizeClass(length);
+		if (sizeClass < MIN_CLASS || sizeClass > MAX_CLASS || length != 1 << sizeClass) return;
+		long size = (long) type.elementSize << sizeClass;
+		Stripe stripe = stripes[home()];
+		synchronized (stripe) {
+			if (stripe.retained + size > stripe.capacity) return;
+			stripe.free[type.index][sizeClass].push(array);
+			stripe.retained += size;
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.lang;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/*
+ * Memory behind direct and mapped byte buffers is only released when the garbage collector finds them unreachable, which for
+ * buffers in the old generation means a full collection. free() releases it right away, through sun.misc.Unsafe.invokeCleaner(),
+ * available since Java 9 and reached by reflection as it is not part of the public API. Where it cannot be reached, memory is
+ * left for the garbage collector to release, as usual.
+ *
+ * Buffers must not be used after being freed: doing so reads and writes memory that may already belong to someone else.
+ */
+
+public final class Buffers {
+
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			unsafe = null;
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	// Only buffers returned by ByteBuffer.allocateDirect() or FileChannel.map() can be freed, not slices or duplicates of them.
+	public static void free(ByteBuffer buffer) {
+		if (INVOKE_CLEANER == null || buffer == null || !buffer.isDirect()) return;
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			// Left to the garbage collector.
+		}
+	}
+
+	private Buffers() {}
+
+}
@@ -0,0 +1,54 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.lang;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Lets processing be stopped from another thread, or once a deadline is reached. Cancellation is cooperative: code doing long
+ * running work calls check() every now and then (per strip, tile or row of pixels) and gives up when it throws.
+ *
+ * A token is attached to the stream files are read from (see com.github.gasrios.raw.io.TiffInputStream), so whatever reads an
+ * IFD can check it. See com.github.gasrios.raw.data.ImageFileDirectory.checkCancelled().
+ */
+
+public final class CancellationToken {
+
+	private volatile boolean cancelled = false;
+
+	// System.nanoTime() based, so wall clock changes do not matter.
+	private final boolean timed;
+	private final long deadline;
+
+	// Cancelled only when cancel() is called.
+	public CancellationToken() {
+		timed = false;
+		deadline = 0;
+	}
+
+	// Also cancelled once timeout elapses.
+	public CancellationToken(long timeout, TimeUnit unit) {
+		timed = true;
+		deadline = System.nanoTime() + unit.toNanos(timeout);
+	}
+
+	public void cancel() { cancelled = true; }
+
+	public boolean isCancelled() { return cancelled || timed && System.nanoTime() - deadline >= 0; }
+
+	public void check() throws TiffProcessorCancelledException {
+		if (cancelled) throw new TiffProcessorCancelledException("Cancelled");
+		if (timed && System.nanoTime() - deadline >= 0) throw new TiffProcessorCancelledException("Deadline exceeded");
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.lang;
+
+/*
+ * IEEE 754 binary16 ("half precision") numbers stored in shorts: 1 sign bit, 5 exponent bits and 10 significand bits, giving
+ * 11 significant bits (relative error up to 2^-11, 4.9E-4) over [6.1E-5, 65504], plus subnormal numbers down to 6.0E-8.
+ *
+ * Conversion from half to single precision is a table lookup. Conversion the other way rounds to nearest, ties to even, as
+ * java.lang.Math does when going from double to float.
+ */
+
+public final class HalfFloat {
+
+	public static float toFloat(short half) { return FLOATS[half & 0xFFFF]; }
+
+	public static short fromFloat(float f) {
+
+		int bits = Float.floatToRawIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		float abs = java.lang.Math.abs(f);
+
+		if (f != f) return (short) (sign | 0x7E00);
+		// Halfway between the largest finite half, 65504, and the next power of two.
+		if (abs >= 65520F) return (short) (sign | 0x7C00);
+		// At most half the smallest subnormal half, 2^-24.
+		if (abs <= 0x1.0p-25F) return (short) sign;
+
+		int exponent = java.lang.Math.getExponent(f), shift = 13, leading = 0;
+		// Subnormal halves: significand gets shifted further right and its implicit leading bit becomes explicit.
+		if (exponent < -14) {
+			shift += -14 - exponent;
+			exponent = -15;
+			leading = 0x800000;
+		}
+
+		int significand = (bits & 0x7FFFFF) | leading;
+		int half = significand >> shift;
+		int lsb = significand & (1 << shift), round = significand & (1 << (shift - 1)), sticky = significand & ((1 << (shift - 1)) - 1);
+		if (round != 0 && (lsb | sticky) != 0) half++;
+
+		// A carry out of the significand correctly bumps the exponent.
+		return (short) (sign | (((exponent + 15) << 10) + half));
+
+	}
+
+	private static final float[] FLOATS = new float[65536];
+
+	static {
+		for (int i = 0; i < FLOATS.length; i++) {
+			int sign = (i & 0x8000) << 16, exponent = (i >>> 10) & 0x1F, significand = i & 0x3FF;
+			if (exponent == 0x1F)
+				FLOATS[i] = Float.intBitsToFloat(sign | 0x7F800000 | (significand << 13));
+			else if (exponent == 0)
+				FLOATS[i] = (sign == 0? 1F : -1F)*significand*0x1.0p-24F;
+			else
+				FLOATS[i] = Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (significand << 13));
+		}
+	}
+
+	private HalfFloat() {}
+
+}
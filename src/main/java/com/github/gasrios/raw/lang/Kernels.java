@@ -0,0 +1,85 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.lang;
+
+/*
+ * Operations over whole rows of pixels stored in planar layout: one array per channel, the first length elements of each
+ * being used. Planes are transformed in place.
+ *
+ * Loops are kept as simple as possible (counted, no calls, no branches other than conditional moves, each element depending
+ * only on elements with the same index) so that the JIT compiler can turn them into SIMD instructions. Working one pixel at a
+ * time, with pixels stored as double[3], leaves it nothing to vectorize.
+ *
+ * Each operation comes in double and float versions, the latter for images processed in single precision, which fit twice as
+ * many elements in each SIMD register. See com.github.gasrios.raw.formats.Storage.FLOAT.
+ */
+
+public final class Kernels {
+
+	// (p0, p1, p2) = m * (p0, p1, p2)
+	public static void multiply(double[][] m, double[] p0, double[] p1, double[] p2, int length) {
+		double
+			m00 = m[0][0], m01 = m[0][1], m02 = m[0][2],
+			m10 = m[1][0], m11 = m[1][1], m12 = m[1][2],
+			m20 = m[2][0], m21 = m[2][1], m22 = m[2][2];
+		for (int i = 0; i < length; i++) {
+			double a = p0[i], b = p1[i], c = p2[i];
+			p0[i] = m00*a + m01*b + m02*c;
+			p1[i] = m10*a + m11*b + m12*c;
+			p2[i] = m20*a + m21*b + m22*c;
+		}
+	}
+
+	// p = p * factor, element by element.
+	public static void multiply(double[] p, double[] factor, int length) {
+		for (int i = 0; i < length; i++) p[i] *= factor[i];
+	}
+
+	// p = p / divisor, element by element, with elements whose divisor is zero set to zero.
+	public static void divide(double[] p, double[] divisor, int length) {
+		for (int i = 0; i < length; i++) p[i] = divisor[i] == 0D? 0D : p[i]/divisor[i];
+	}
+
+	// p = p * factor
+	public static void scale(double[] p, double factor, int length) {
+		for (int i = 0; i < length; i++) p[i] *= factor;
+	}
+
+	public static void multiply(double[][] m, float[] p0, float[] p1, float[] p2, int length) {
+		float
+			m00 = (float) m[0][0], m01 = (float) m[0][1], m02 = (float) m[0][2],
+			m10 = (float) m[1][0], m11 = (float) m[1][1], m12 = (float) m[1][2],
+			m20 = (float) m[2][0], m21 = (float) m[2][1], m22 = (float) m[2][2];
+		for (int i = 0; i < length; i++) {
+			float a = p0[i], b = p1[i], c = p2[i];
+			p0[i] = m00*a + m01*b + m02*c;
+			p1[i] = m10*a + m11*b + m12*c;
+			p2[i] = m20*a + m21*b + m22*c;
+		}
+	}
+
+	public static void multiply(float[] p, float[] factor, int length) {
+		for (int i = 0; i < length; i++) p[i] *= factor[i];
+	}
+
+	public static void divide(float[] p, float[] divisor, int length) {
+		for (int i = 0; i < length; i++) p[i] = divisor[i] == 0F? 0F : p[i]/divisor[i];
+	}
+
+	public static void scale(float[] p, float factor, int length) {
+		for (int i = 0; i < length; i++) p[i] *= factor;
+	}
+
+	private Kernels() {}
+
+}
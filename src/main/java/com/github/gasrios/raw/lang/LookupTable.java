@@ -0,0 +1,44 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.lang;
+
+import java.util.function.DoubleUnaryOperator;
+
+/*
+ * A function sampled at evenly spaced points of [min, max], linearly interpolated in between. Meant to replace calls to
+ * transcendental functions (e.g. java.lang.Math.pow) made once or more per pixel.
+ *
+ * Interpolation error is bounded by h²/8 times the largest absolute value of the second derivative of the function in the
+ * interval, h being the distance between samples. Callers are responsible for only passing values inside [min, max].
+ */
+
+public final class LookupTable {
+
+	private final double min, scale;
+	private final double[] values;
+
+	public LookupTable(DoubleUnaryOperator function, double min, double max, int intervals) {
+		this.min = min;
+		scale = intervals/(max - min);
+		// One extra sample, so interpolating at max does not need special handling.
+		values = new double[intervals + 2];
+		for (int i = 0; i < values.length; i++) values[i] = function.applyAsDouble(java.lang.Math.min(max, min + i/scale));
+	}
+
+	public double get(double x) {
+		double position = (x - min)*scale;
+		int i = (int) position;
+		return values[i] + (values[i + 1] - values[i])*(position - i);
+	}
+
+}
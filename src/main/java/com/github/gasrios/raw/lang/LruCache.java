@@ -0,0 +1,40 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.lang;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * A bounded, thread safe, least recently used cache. Values computed from the same inputs over and over again (a given camera
+ * body or lens produces the same calibration data for every file it writes) are kept here so batch runs only pay for them once.
+ */
+
+public final class LruCache<K, V> {
+
+	private final Map<K, V> map;
+
+	public LruCache(final int capacity) {
+		map = new LinkedHashMap<K, V>(16, .75F, true) {
+			private static final long serialVersionUID = 1L;
+			@Override protected boolean removeEldestEntry(Map.Entry<K, V> eldest) { return size() > capacity; }
+		};
+	}
+
+	public synchronized V get(K key) { return map.get(key); }
+
+	public synchronized void put(K key, V value) { map.put(key, value); }
+
+	public synchronized void clear() { map.clear(); }
+
+}
@@ -12,8 +12,8 @@
 
 package com.github.gasrios.raw.lang;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 
 import com.github.gasrios.raw.data.Illuminant;
 
@@ -82,6 +82,18 @@ public final class Math {
 	 * calibration performed by the camera manufacturer.
 	 *
 	 * ForwardMatrix1 defines a matrix that maps white balanced camera colors to XYZ D50 colors.
+	 *
+	 * See Digital Negative Specification Version 1.4.0.0, page 81. Without ForwardMatrix tags:
+	 *
+	 * CameraToXYZ = Inverse(AB * CC * CM)
+	 *
+	 * CameraToXYZ_D50 = CA * CameraToXYZ
+	 *
+	 * CA being a chromatic adaptation matrix mapping the white balance to D50, see chromaticAdaptation().
+	 *
+	 * ColorMatrix1 is required. Files calibrated for a single illuminant have no ColorMatrix2, CameraCalibration2 or
+	 * ForwardMatrix2: tags of the first illuminant are then used as they are, without interpolation. Missing AnalogBalance and
+	 * CameraCalibration tags are taken as identity matrices.
 	 */
 	public static double[][] cameraToXYZ_D50(
 			RATIONAL [] analogBalance,
@@ -95,46 +107,188 @@ public final class Math {
 			SRATIONAL[] forwardMatrix1,
 			SRATIONAL[] forwardMatrix2
 	) {
+		return cameraToXYZ_D50(
+			null,
+			analogBalance,
+			cameraNeutral,
+			calibrationIlluminant1,
+			calibrationIlluminant2,
+			cameraCalibration1,
+			cameraCalibration2,
+			colorMatrix1,
+			colorMatrix2,
+			forwardMatrix1,
+			forwardMatrix2
+		);
+	}
 
-		double weight =
-			interpolationWeightingFactor(
-				analogBalance,
-				calibrationIlluminant1,
-				calibrationIlluminant2,
-				cameraCalibration1,
-				cameraCalibration2,
-				cameraNeutral,
-				colorMatrix1,
-				colorMatrix2
-			);
+	/*
+	 * Files written by the same camera body share all of the inputs above but CameraNeutral (AsShotNeutral), so most of the
+	 * work is cached, keyed by UniqueCameraModel plus the values of the calibration tags:
+	 *
+	 * - WEIGHTS holds interpolation weighting factors, the result of the iterative solution below, for camera neutrals rounded
+	 *   to multiples of 1/NEUTRAL_QUANTUM. Weights are smooth functions of the camera neutral, so neutrals that round to the same
+	 *   values get the weight computed for the first of them to be seen, with no visible difference;
+	 *
+	 * - INTERPOLATED holds, for a given weight, Inverse(AB * CC) and FM.
+	 *
+	 * What is left to do per file, applying CameraNeutral itself, is a couple of 3 x 3 multiplications.
+	 */
+	public static double[][] cameraToXYZ_D50(
+			String		uniqueCameraModel,
+			RATIONAL [] analogBalance,
+			double   [] cameraNeutral,
+			int			calibrationIlluminant1,
+			int			calibrationIlluminant2,
+			SRATIONAL[] cameraCalibration1,
+			SRATIONAL[] cameraCalibration2,
+			SRATIONAL[] colorMatrix1,
+			SRATIONAL[] colorMatrix2,
+			SRATIONAL[] forwardMatrix1,
+			SRATIONAL[] forwardMatrix2
+	) {
 
-		double[][] invABxCC =
-			Math.inverse(
-				Math.multiply(
-					Math.asDiagonalMatrix(RATIONAL.asDoubleArray(analogBalance)),
-					Math.weightedAverage(
-						Math.vector2Matrix(SRATIONAL.asDoubleArray(cameraCalibration1)),
-						Math.vector2Matrix(SRATIONAL.asDoubleArray(cameraCalibration2)),
-						weight
-					)
-				)
-			);
+		List<Object> calibration = Arrays.<Object>asList(
+			uniqueCameraModel,
+			calibrationIlluminant1,
+			calibrationIlluminant2,
+			asList(analogBalance),
+			asList(cameraCalibration1),
+			asList(cameraCalibration2),
+			asList(colorMatrix1),
+			asList(colorMatrix2),
+			asList(forwardMatrix1),
+			asList(forwardMatrix2)
+		);
 
-		return
-			Math.multiply(
-				Math.multiply(
-					Math.weightedAverage(
-						Math.vector2Matrix(SRATIONAL.asDoubleArray(forwardMatrix1)),
-						Math.vector2Matrix(SRATIONAL.asDoubleArray(forwardMatrix2)),
-						weight
-					),
-					Math.inverse(Math.asDiagonalMatrix(Math.multiply(invABxCC, cameraNeutral)))
-				),
-				invABxCC
+		if (colorMatrix1 == null) throw new TiffProcessorRuntimeException("ColorMatrix1 is required");
+
+		Scratch s = SCRATCH.get();
+		boolean loaded = false;
+
+		List<Object> neutral = Arrays.<Object>asList(
+			calibration,
+			java.lang.Math.round(cameraNeutral[0]*NEUTRAL_QUANTUM),
+			java.lang.Math.round(cameraNeutral[1]*NEUTRAL_QUANTUM),
+			java.lang.Math.round(cameraNeutral[2]*NEUTRAL_QUANTUM)
 		);
 
+		Double weight = WEIGHTS.get(neutral);
+		if (weight == null) {
+			load(s, analogBalance, cameraCalibration1, cameraCalibration2, colorMatrix1, colorMatrix2, forwardMatrix1, forwardMatrix2);
+			loaded = true;
+			weight = colorMatrix2 == null? 0D : interpolationWeightingFactor(s, cameraNeutral, calibrationIlluminant1, calibrationIlluminant2);
+			WEIGHTS.put(neutral, weight);
+		}
+
+		if (forwardMatrix1 == null) {
+			if (!loaded)
+				load(s, analogBalance, cameraCalibration1, cameraCalibration2, colorMatrix1, colorMatrix2, forwardMatrix1, forwardMatrix2);
+			// CameraToXYZ, then the white balance in XYZ, which CameraToXYZ maps CameraNeutral to.
+			xyzToCamera(weight, s, s.m3);
+			inverse(s.m3, s.m4);
+			multiplyVector(s.m4, cameraNeutral, s.v);
+			chromaticAdaptation(s, s.m1);
+			multiply(s.m1, s.m4, s.m2);
+			return rows(s.m2);
+		}
+
+		List<Object> key = Arrays.<Object>asList(calibration, weight);
+		double[][] interpolated = INTERPOLATED.get(key);
+		if (interpolated == null) {
+			if (!loaded)
+				load(s, analogBalance, cameraCalibration1, cameraCalibration2, colorMatrix1, colorMatrix2, forwardMatrix1, forwardMatrix2);
+			interpolated = new double[][] { new double[9], new double[9] };
+			// Inverse(AB * CC)
+			weightedAverage(s.cc1, s.cc2, weight, s.m1);
+			multiply(s.ab, s.m1, s.m2);
+			inverse(s.m2, interpolated[0]);
+			// FM
+			weightedAverage(s.fm1, s.fm2, weight, interpolated[1]);
+			INTERPOLATED.put(key, interpolated);
+		}
+
+		double[] invABxCC = interpolated[0];
+
+		// ReferenceNeutral = invABxCC * CameraNeutral
+		multiplyVector(invABxCC, cameraNeutral, s.v);
+
+		// FM * D, D being the inverse of a diagonal matrix: each column j of FM gets divided by ReferenceNeutral[j].
+		for (int i = 0; i < 9; i++) s.m1[i] = interpolated[1][i]/s.v[i%3];
+
+		multiply(s.m1, invABxCC, s.m2);
+
+		return rows(s.m2);
+
+	}
+
+	private static double[][] rows(double[] m) {
+		return new double[][] {
+			new double[] { m[0], m[1], m[2] },
+			new double[] { m[3], m[4], m[5] },
+			new double[] { m[6], m[7], m[8] }
+		};
+	}
+
+	/*
+	 * Linear Bradford chromatic adaptation from the white balance, given in XYZ in s.v, to D50: cone responses of the white
+	 * balance are scaled to those of D50.
+	 *
+	 * CA = Inverse(MB) * AsDiagonalMatrix(MB * D50 / MB * WhiteBalance) * MB
+	 *
+	 * See http://www.brucelindbloom.com/index.html?Eqn_ChromAdapt.html
+	 */
+	private static void chromaticAdaptation(Scratch s, double[] result) {
+		multiplyVector(BRADFORD, s.v, s.v2);
+		for (int i = 0; i < 9; i++) s.m5[i] = BRADFORD[i]*D50_CONE[i/3]/s.v2[i/3];
+		multiply(BRADFORD_INVERSE, s.m5, result);
+	}
+
+	private static final double[] BRADFORD = new double[] {
+		 0.8951D,  0.2664D, -0.1614D,
+		-0.7502D,  1.7135D,  0.0367D,
+		 0.0389D, -0.0685D,  1.0296D
+	};
+
+	private static final double[] BRADFORD_INVERSE = new double[9], D50_CONE = new double[3];
+
+	// D50 as defined in Digital Negative Specification Version 1.4.0.0, page 81: x = 0.3457, y = 0.3585, Y = 1.
+	static {
+		inverse(BRADFORD, BRADFORD_INVERSE);
+		multiplyVector(BRADFORD, new double[] { 0.3457D/0.3585D, 1D, (1D - 0.3457D - 0.3585D)/0.3585D }, D50_CONE);
 	}
 
+	private static final double NEUTRAL_QUANTUM = 1024D;
+
+	private static final LruCache<List<Object>, Double> WEIGHTS = new LruCache<List<Object>, Double>(1024);
+
+	private static final LruCache<List<Object>, double[][]> INTERPOLATED = new LruCache<List<Object>, double[][]>(1024);
+
+	private static void load(
+		Scratch		s,
+		RATIONAL [] analogBalance,
+		SRATIONAL[] cameraCalibration1,
+		SRATIONAL[] cameraCalibration2,
+		SRATIONAL[] colorMatrix1,
+		SRATIONAL[] colorMatrix2,
+		SRATIONAL[] forwardMatrix1,
+		SRATIONAL[] forwardMatrix2
+	) {
+		diagonal(analogBalance, s.ab);
+		calibration(cameraCalibration1, s.cc1);
+		calibration(cameraCalibration2 == null? cameraCalibration1 : cameraCalibration2, s.cc2);
+		matrix(colorMatrix1, s.cm1);
+		matrix(colorMatrix2 == null? colorMatrix1 : colorMatrix2, s.cm2);
+		// Not needed without ForwardMatrix1, see cameraToXYZ_D50().
+		if (forwardMatrix1 != null) {
+			matrix(forwardMatrix1, s.fm1);
+			matrix(forwardMatrix2 == null? forwardMatrix1 : forwardMatrix2, s.fm2);
+		}
+	}
+
+	// TiffNumber implements equals() and hashCode(), arrays do not.
+	private static List<Object> asList(Object[] array) { return array == null? null : Arrays.<Object>asList(array); }
+
 	/*
 	 * We don't really need the White Balance xy Coordinates, just the interpolation weighting factor, but the same process
 	 * calculates both.
@@ -157,14 +311,10 @@ public final class Math {
 	 * 4. Iterate until the xy values converge to a solution.
 	 */
 	private static double interpolationWeightingFactor(
-		RATIONAL [] analogBalance,
-		int			calibrationIlluminant1,
-		int			calibrationIlluminant2,
-		SRATIONAL[] cameraCalibration1,
-		SRATIONAL[] cameraCalibration2,
+		Scratch		s,
 		double[]	cameraNeutral,
-		SRATIONAL[] colorMatrix1,
-		SRATIONAL[] colorMatrix2
+		int			calibrationIlluminant1,
+		int			calibrationIlluminant2
 	) {
 
 		// This is just an initial guess. Any value will do.
@@ -176,16 +326,15 @@ public final class Math {
 		do {
 			count++;
 			previousWeight = weight;
+			xyzToCamera(weight, s, s.m3);
+			inverse(s.m3, s.m4);
+			multiplyVector(s.m4, cameraNeutral, s.v);
+			// http://www.brucelindbloom.com/index.html?Eqn_XYZ_to_xyY.html
+			double sum = s.v[0] + s.v[1] + s.v[2];
 			weight =
 				interpolationWeightingFactor(
-					xyz2xy(
-						Math.multiply(
-							Math.inverse(
-								xyzToCamera(weight, analogBalance, cameraCalibration1, cameraCalibration2, colorMatrix1, colorMatrix2)
-							),
-							cameraNeutral
-						)
-					),
+					sum == 0? 0 : s.v[0]/sum,
+					sum == 0? 0 : s.v[1]/sum,
 					calibrationIlluminant1,
 					calibrationIlluminant2
 				);
@@ -196,10 +345,11 @@ public final class Math {
 
 	}
 
-	private static final Map<Integer, Illuminant> ILLUMINANTS = new HashMap<Integer, Illuminant>();
+	// Indexed by value, as a HashMap<Integer, Illuminant> would box (and for values above 127, allocate) on every lookup.
+	private static final Illuminant[] ILLUMINANTS = new Illuminant[256];
 
 	static {
-		for (Illuminant illuminant: Illuminant.values()) ILLUMINANTS.put(illuminant.value, illuminant);
+		for (Illuminant illuminant: Illuminant.values()) if (illuminant.value >= 0) ILLUMINANTS[illuminant.value] = illuminant;
 	}
 
 	/*
@@ -213,19 +363,19 @@ public final class Math {
 	 * calibration illuminant temperatures, then invert all the temperatures and use linear interpolation. Otherwise, use
 	 * the closest calibration tag set.
 	 */
-	private static double interpolationWeightingFactor(double[] xy, int calibrationIlluminant1, int calibrationIlluminant2) {
+	private static double interpolationWeightingFactor(double x, double y, int calibrationIlluminant1, int calibrationIlluminant2) {
 		return
 			1D - normalize(
-				1/cct(xy),
-				1/ILLUMINANTS.get(calibrationIlluminant2).cct,
-				1/ILLUMINANTS.get(calibrationIlluminant1).cct
+				1/cct(x, y),
+				1/ILLUMINANTS[calibrationIlluminant2].cct,
+				1/ILLUMINANTS[calibrationIlluminant1].cct
 			);
 	}
 
 	// McCamy's cubic approximation (http://en.wikipedia.org/wiki/Color_temperature#Approximation)
-	private static double cct(double[] chromaticityCoordinates) {
-		double n = (chromaticityCoordinates[0] - 0.3320D)/(chromaticityCoordinates[1] - 0.1858D);
-		return -449D*java.lang.Math.pow(n, 3D) + 3525D*java.lang.Math.pow(n, 2D) - 6823.3D*n + 5520.33D;
+	private static double cct(double x, double y) {
+		double n = (x - 0.3320D)/(y - 0.1858D);
+		return ((-449D*n + 3525D)*n - 6823.3D)*n + 5520.33D;
 	}
 
 	/*
@@ -255,37 +405,11 @@ public final class Math {
 	 *
 	 * Let CM be the n-by-3 matrix interpolated from the ColorMatrix1 and ColorMatrix2 tags.
 	 */
-	private static double[][] xyzToCamera(
-		double weight,
-		RATIONAL [] analogBalance,
-		SRATIONAL[] cameraCalibration1,
-		SRATIONAL[] cameraCalibration2,
-		SRATIONAL[] colorMatrix1,
-		SRATIONAL[] colorMatrix2
-	) {
-		return
-			Math.multiply(
-				Math.multiply(
-					Math.asDiagonalMatrix(RATIONAL.asDoubleArray(analogBalance)),
-					Math.weightedAverage(
-						Math.vector2Matrix(SRATIONAL.asDoubleArray(cameraCalibration1)),
-						Math.vector2Matrix(SRATIONAL.asDoubleArray(cameraCalibration2)),
-						weight
-					)
-				),
-				Math.weightedAverage(
-					Math.vector2Matrix(SRATIONAL.asDoubleArray(colorMatrix1)),
-					Math.vector2Matrix(SRATIONAL.asDoubleArray(colorMatrix2)),
-					weight
-				)
-			);
-	}
-
-	// http://www.brucelindbloom.com/index.html?Eqn_XYZ_to_xyY.html
-	private static double[] xyz2xy(double[] xyz) {
-		return (xyz[0]+xyz[1]+xyz[2]) == 0?
-			new double[] { 0, 0, 0 }:
-			new double[] { xyz[0]/(xyz[0]+xyz[1]+xyz[2]), xyz[1]/(xyz[0]+xyz[1]+xyz[2]), xyz[1] };
+	private static void xyzToCamera(double weight, Scratch s, double[] xyzToCamera) {
+		weightedAverage(s.cc1, s.cc2, weight, s.m1);
+		multiply(s.ab, s.m1, s.m2);
+		weightedAverage(s.cm1, s.cm2, weight, s.m1);
+		multiply(s.m2, s.m1, xyzToCamera);
 	}
 
 	/*
@@ -298,60 +422,99 @@ public final class Math {
 		return m2;
 	}
 
-	private static double[][] multiply(double[][] m1, double[][] m2) {
+	/*
+	 * Per pixel version of the method above: 3 x 3 matrices only, nothing allocated. result may be v itself, so a pixel can be
+	 * transformed in place.
+	 */
+	public static double[] multiply(double[][] m, double[] v, double[] result) {
+		double v0 = v[0], v1 = v[1], v2 = v[2];
+		result[0] = multiplyAdd(m[0][0], v0, multiplyAdd(m[0][1], v1, m[0][2]*v2));
+		result[1] = multiplyAdd(m[1][0], v0, multiplyAdd(m[1][1], v1, m[1][2]*v2));
+		result[2] = multiplyAdd(m[2][0], v0, multiplyAdd(m[2][1], v1, m[2][2]*v2));
+		return result;
+	}
+
+	public static double[][] multiply(double[][] m1, double[][] m2) {
 		double[][] m3 = new double[m1.length][m2[0].length];
 		for (int i = 0; i < m3.length; i++) for (int j = 0; j < m3[0].length; j++) for (int k = 0; k < m2.length; k++)
 			m3[i][j] += m1[i][k]* m2[k][j];
 		return m3;
 	}
 
-	private static double[][] weightedAverage(double[][] matrix1, double[][] matrix2, double weight) {
-		double[][] buffer = new double[matrix1.length][matrix1[0].length];
-		weight = weight < 0? 0 : weight > 1? 1 : weight;
-		for (int i = 0; i < matrix1.length; i++) for (int j = 0; j < matrix1[0].length; j++)
-			buffer[i][j] = matrix1[i][j]*(1-weight) + matrix2[i][j]*weight;
-		return buffer;
+	/*
+	 * 3 x 3 kernel used when computing camera to XYZ matrices. Matrices are flattened in row scan order, the same order DNG
+	 * tags use, and results are written to arrays provided by the caller, so the iterative solution above allocates nothing.
+	 */
+
+	private static void multiply(double[] m1, double[] m2, double[] m3) {
+		for (int i = 0; i < 9; i += 3) {
+			double a = m1[i], b = m1[i + 1], c = m1[i + 2];
+			m3[i]		= multiplyAdd(a, m2[0], multiplyAdd(b, m2[3], c*m2[6]));
+			m3[i + 1]	= multiplyAdd(a, m2[1], multiplyAdd(b, m2[4], c*m2[7]));
+			m3[i + 2]	= multiplyAdd(a, m2[2], multiplyAdd(b, m2[5], c*m2[8]));
+		}
 	}
 
-	private static double[][] asDiagonalMatrix(double[] vector) {
-		double[][] buffer = new double[vector.length][vector.length];
-		for (int i = 0; i < vector.length; i++) buffer[i][i] = vector[i];
-		return buffer;
+	private static void multiplyVector(double[] m, double[] v, double[] result) {
+		double v0 = v[0], v1 = v[1], v2 = v[2];
+		result[0] = multiplyAdd(m[0], v0, multiplyAdd(m[1], v1, m[2]*v2));
+		result[1] = multiplyAdd(m[3], v0, multiplyAdd(m[4], v1, m[5]*v2));
+		result[2] = multiplyAdd(m[6], v0, multiplyAdd(m[7], v1, m[8]*v2));
 	}
 
-	// TODO samplesPerPixel != 3
-	private static double[][] vector2Matrix(double[] vector) {
-		double[][] buffer = null;
-		if (vector != null) {
-			buffer = new double[3][3];
-			for (int i = 0; i < 9; i++) buffer[i/3][i%3] = vector[i];
-		}
-		return buffer;
+	private static void weightedAverage(double[] m1, double[] m2, double weight, double[] result) {
+		weight = weight < 0? 0 : weight > 1? 1 : weight;
+		for (int i = 0; i < 9; i++) result[i] = multiplyAdd(m2[i] - m1[i], weight, m1[i]);
+	}
+
+	// Closed form inverse: transposed matrix of cofactors divided by the determinant.
+	private static void inverse(double[] m, double[] result) {
+		double c0 = multiplyAdd(m[4], m[8], -m[5]*m[7]);
+		double c1 = multiplyAdd(m[5], m[6], -m[3]*m[8]);
+		double c2 = multiplyAdd(m[3], m[7], -m[4]*m[6]);
+		double d = 1D/multiplyAdd(m[0], c0, multiplyAdd(m[1], c1, m[2]*c2));
+		result[0] = c0*d;
+		result[1] = multiplyAdd(m[2], m[7], -m[1]*m[8])*d;
+		result[2] = multiplyAdd(m[1], m[5], -m[2]*m[4])*d;
+		result[3] = c1*d;
+		result[4] = multiplyAdd(m[0], m[8], -m[2]*m[6])*d;
+		result[5] = multiplyAdd(m[2], m[3], -m[0]*m[5])*d;
+		result[6] = c2*d;
+		result[7] = multiplyAdd(m[1], m[6], -m[0]*m[7])*d;
+		result[8] = multiplyAdd(m[0], m[4], -m[1]*m[3])*d;
 	}
 
-	private static double[][] inverse(double[][] m) {
-		double[][] buffer = new double[m.length][m[0].length];
-		double determinant = determinant(m);
-		for (int i = 0; i < m.length; i++) for (int j = 0; j < m.length; j++) buffer[i][j] = cofactor(j, i, m)/determinant;
-		return buffer;
+	// Missing tags (e.g. AnalogBalance and CameraCalibration are optional) are taken as identity matrices.
+	private static void diagonal(RATIONAL[] vector, double[] result) {
+		for (int i = 0; i < 9; i++) result[i] = i%4 != 0? 0D : vector == null? 1D : vector[i/4].doubleValue();
 	}
 
-	private static double determinant(double[][] m) {
-		if (m.length == 1) return m[0][0];
-		double d = 0.0D;
-		for (int i = 0; i < m.length; i++) d += m[i][0]*cofactor(i, 0, m);
-		return d;
+	private static void calibration(SRATIONAL[] vector, double[] result) {
+		if (vector == null) for (int i = 0; i < 9; i++) result[i] = i%4 == 0? 1D : 0D;
+		else matrix(vector, result);
 	}
 
-	private static double cofactor(int i, int j, double[][] m) { return determinant(submatrix(i, j, m))*java.lang.Math.pow(-1, i+j); }
+	// TODO samplesPerPixel != 3
+	private static void matrix(SRATIONAL[] vector, double[] result) {
+		for (int i = 0; i < 9; i++) result[i] = vector[i].doubleValue();
+	}
 
-	private static double[][] submatrix(int row, int column, double[][] m) {
-		double[][] buffer = new double[m.length-1][m[0].length-1];
-		for (int i = 0; i < m.length; i ++) for (int j = 0; j < m.length; j ++) if (i != row && j != column)
-			buffer[i - (i < row? 0 : 1)][j - (j < column? 0 : 1)] = m[i][j];
-		return buffer;
+	/*
+	 * A multiplication followed by an addition, rounded twice. java.lang.Math.fma rounds once, but is only fast where the JIT
+	 * compiler maps it to a processor instruction, and falls back to BigDecimal arithmetic elsewhere.
+	 */
+	private static double multiplyAdd(double a, double b, double c) { return a*b + c; }
+
+	// Preallocated per thread, so computing camera to XYZ matrices only allocates the matrix returned.
+	private static final class Scratch {
+		final double[] ab = new double[9], cc1 = new double[9], cc2 = new double[9], cm1 = new double[9], cm2 = new double[9];
+		final double[] fm1 = new double[9], fm2 = new double[9];
+		final double[] m1 = new double[9], m2 = new double[9], m3 = new double[9], m4 = new double[9], m5 = new double[9];
+		final double[] v = new double[3], v2 = new double[3];
 	}
 
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
 	private Math() {}
 
-}
\ No newline at end of file
+}
@@ -32,6 +32,10 @@ public class RATIONAL extends TiffNumber {
 		this.denominator = denominator;
 	}
 
+	public long getNumerator() { return numerator; }
+
+	public long getDenominator() { return denominator; }
+
 	@Override public double doubleValue() { return ((double) numerator)/denominator; }
 
 	@Override public float floatValue() { return ((float) numerator)/denominator; }
@@ -0,0 +1,74 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.lang;
+
+import java.util.Arrays;
+
+/*
+ * A RATIONAL or SRATIONAL array stored as two arrays of int, numerators and denominators, 8 bytes per element. An array of
+ * com.github.gasrios.raw.lang.RATIONAL takes an object, with its header and two longs, plus a reference, per element.
+ *
+ * Numerators and denominators keep the 32 bits they have in the file, read as unsigned values for RATIONAL and signed ones
+ * for SRATIONAL. See com.github.gasrios.raw.data.ImageFileDirectoryLoader for when arrays are stored this way.
+ */
+
+public final class RationalArray {
+
+	private final int[] numerators, denominators;
+	private final boolean signed;
+
+	public RationalArray(int[] numerators, int[] denominators, boolean signed) {
+		if (numerators.length != denominators.length)
+			throw new IllegalArgumentException("Numerators and denominators differ in length: " + numerators.length + ", " + denominators.length);
+		this.numerators = numerators;
+		this.denominators = denominators;
+		this.signed = signed;
+	}
+
+	public int length() { return numerators.length; }
+
+	// Whether this is an SRATIONAL array.
+	public boolean isSigned() { return signed; }
+
+	public long getNumerator(int index) { return signed? numerators[index] : numerators[index] & 0xFFFFFFFFL; }
+
+	public long getDenominator(int index) { return signed? denominators[index] : denominators[index] & 0xFFFFFFFFL; }
+
+	public double doubleValue(int index) { return ((double) getNumerator(index))/getDenominator(index); }
+
+	// A RATIONAL, or SRATIONAL if signed, created on every call.
+	public TiffNumber get(int index) {
+		return signed?
+			new SRATIONAL(numerators[index], denominators[index]):
+			new RATIONAL(getNumerator(index), getDenominator(index));
+	}
+
+	public double[] asDoubleArray() {
+		double[] buffer = new double[numerators.length];
+		for (int i = 0; i < buffer.length; i++) buffer[i] = doubleValue(i);
+		return buffer;
+	}
+
+	@Override public String toString() { return Arrays.toString(asDoubleArray()); }
+
+	@Override public boolean equals(Object object) {
+		return
+			object instanceof RationalArray &&
+			signed == ((RationalArray) object).signed &&
+			Arrays.equals(numerators, ((RationalArray) object).numerators) &&
+			Arrays.equals(denominators, ((RationalArray) object).denominators);
+	}
+
+	@Override public int hashCode() { return 31*Arrays.hashCode(numerators) + Arrays.hashCode(denominators); }
+
+}
@@ -32,6 +32,10 @@ public class SRATIONAL extends TiffNumber {
 		this.denominator = denominator;
 	}
 
+	public int getNumerator() { return numerator; }
+
+	public int getDenominator() { return denominator; }
+
 	@Override public double doubleValue() { return ((double) numerator)/denominator; }
 
 	@Override public float floatValue() { return ((float) numerator)/denominator; }
@@ -20,4 +20,6 @@ public class TiffProcessorException extends Exception {
 
 	public TiffProcessorException(Throwable cause) { super(cause); }
 
+	public TiffProcessorException(String message, Throwable cause) { super(message, cause); }
+
 }
\ No newline at end of file
@@ -0,0 +1,59 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.opcodes;
+
+import java.nio.ByteBuffer;
+
+/*
+ * See Digital Negative Specification Version 1.4.0.0, page 92.
+ *
+ * Several opcodes share the same way of selecting the pixels they work on: a rectangle (Top, Left, Bottom, Right), a range of
+ * planes (Plane, Planes) and a pitch (RowPitch, ColPitch), so e.g. a single Bayer channel can be targeted with pitch 2.
+ */
+
+abstract class AreaOpcode extends Opcode {
+
+	final int top, left, bottom, right, plane, planes, rowPitch, colPitch;
+
+	AreaOpcode(int id, int version, int flags, ByteBuffer parameters) {
+		super(id, version, flags);
+		top			= parameters.getInt();
+		left		= parameters.getInt();
+		bottom		= parameters.getInt();
+		right		= parameters.getInt();
+		plane		= parameters.getInt();
+		planes		= parameters.getInt();
+		rowPitch	= java.lang.Math.max(1, parameters.getInt());
+		colPitch	= java.lang.Math.max(1, parameters.getInt());
+	}
+
+	@Override final void apply(double[][] image, int width, int length, int top, int left, int bottom, int right) {
+		int yMin = align(java.lang.Math.max(top, this.top), this.top, rowPitch);
+		int xMin = align(java.lang.Math.max(left, this.left), this.left, colPitch);
+		int yMax = java.lang.Math.min(bottom, this.bottom);
+		int xMax = java.lang.Math.min(right, this.right);
+		int lastPlane = java.lang.Math.min(image.length, plane + planes);
+		for (int p = plane; p < lastPlane; p++) {
+			double[] samples = image[p];
+			for (int y = yMin; y < yMax; y += rowPitch) for (int x = xMin; x < xMax; x += colPitch)
+				samples[y*width + x] = apply(samples[y*width + x], x, y, p);
+		}
+	}
+
+	// Returns the new value of plane p of pixel (x, y).
+	abstract double apply(double value, int x, int y, int p);
+
+	// First coordinate not smaller than value that falls on the pitch grid starting at origin.
+	private static int align(int value, int origin, int pitch) { return value + (pitch - (value - origin)%pitch)%pitch; }
+
+}
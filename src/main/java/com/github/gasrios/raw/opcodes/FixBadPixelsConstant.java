@@ -0,0 +1,77 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.opcodes;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/*
+ * See Digital Negative Specification Version 1.4.0.0, page 88.
+ *
+ * Pixels whose stored value equals Constant are bad and get replaced by the average of their good neighbours in the same plane.
+ * The DNG specification places this opcode in OpcodeList1, where pixels hold stored values. Elsewhere, Constant is mapped the
+ * way each pixel was (see Stage.level()) before comparing them.
+ *
+ * BayerPhase is only meaningful for CFA images. com.github.gasrios.raw.processor.DngProcessor reads linear DNGs, where every
+ * pixel holds all planes, so the eight surrounding pixels are used as neighbours.
+ *
+ * Bad pixels are found in prepare(), before any of them is fixed. Otherwise, when tiles are processed concurrently, whether a
+ * pixel at the border of a tile counts as a good neighbour would depend on the order in which its tile gets processed.
+ */
+
+public final class FixBadPixelsConstant extends Opcode {
+
+	static final int ID = 4;
+
+	private final long constant;
+	private final int bayerPhase;
+
+	private BitSet[] bad;
+
+	FixBadPixelsConstant(int version, int flags, ByteBuffer parameters) {
+		super(ID, version, flags);
+		constant	= parameters.getInt() & 0xFFFFFFFFL;
+		bayerPhase	= parameters.getInt();
+	}
+
+	public int getBayerPhase() { return bayerPhase; }
+
+	@Override void prepare(double[][] image, int width, int length, Stage stage) {
+		bad = new BitSet[image.length];
+		for (int p = 0; p < image.length; p++) {
+			bad[p] = new BitSet();
+			for (int y = 0; y < length; y++) for (int x = 0; x < width; x++)
+				if (image[p][y*width + x] == stage.level(constant, x, y, p)) bad[p].set(y*width + x);
+		}
+	}
+
+	@Override void apply(double[][] image, int width, int length, int top, int left, int bottom, int right) {
+		for (int p = 0; p < bad.length; p++) {
+			double[] samples = image[p];
+			for (int y = top; y < bottom; y++) for (int x = left; x < right; x++) if (bad[p].get(y*width + x)) {
+				double sum = 0D;
+				int count = 0;
+				for (int j = java.lang.Math.max(0, y - 1); j <= java.lang.Math.min(length - 1, y + 1); j++)
+					for (int i = java.lang.Math.max(0, x - 1); i <= java.lang.Math.min(width - 1, x + 1); i++)
+						if (!bad[p].get(j*width + i)) {
+							sum += samples[j*width + i];
+							count++;
+						}
+				if (count > 0) samples[y*width + x] = sum/count;
+			}
+		}
+	}
+
+	@Override void release() { bad = null; }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.opcodes;
+
+import java.nio.ByteBuffer;
+
+/*
+ * See Digital Negative Specification Version 1.4.0.0, page 96.
+ *
+ * Multiplies pixels by a gain interpolated from a two dimensional map, usually to correct lens shading. Map points are placed
+ * using coordinates relative to the image, (0, 0) being its top left and (1, 1) its bottom right corner. When the map has
+ * fewer planes than the area it applies to, its last plane is used for the remaining ones.
+ *
+ * Bilinear interpolation is split in two steps. Interpolation along the vertical axis only depends on the row, so prepare()
+ * computes it once per row, leaving a single linear interpolation between two neighbouring map columns to be done per pixel.
+ * Column indexes and weights are precomputed too.
+ */
+
+public final class GainMap extends AreaOpcode {
+
+	static final int ID = 9;
+
+	private final int pointsV, pointsH, mapPlanes;
+	private final double spacingV, spacingH, originV, originH;
+	private final float[] gains;
+
+	// Map interpolated along the vertical axis, one entry per image row.
+	private float[][] rowGains;
+
+	private int[] columnIndex;
+	private float[] columnWeight;
+
+	GainMap(int version, int flags, ByteBuffer parameters) {
+		super(ID, version, flags, parameters);
+		pointsV		= parameters.getInt();
+		pointsH		= parameters.getInt();
+		spacingV	= parameters.getDouble();
+		spacingH	= parameters.getDouble();
+		originV		= parameters.getDouble();
+		originH		= parameters.getDouble();
+		mapPlanes	= parameters.getInt();
+		gains		= new float[pointsV*pointsH*mapPlanes];
+		for (int i = 0; i < gains.length; i++) gains[i] = parameters.getFloat();
+	}
+
+	@Override void prepare(double[][] image, int width, int length, Stage stage) {
+
+		rowGains = new float[length][];
+		for (int y = java.lang.Math.max(0, top); y < java.lang.Math.min(length, bottom); y++) {
+			double position = index((y + .5D)/length, originV, spacingV, pointsV);
+			int index = (int) position;
+			int next = java.lang.Math.min(index + 1, pointsV - 1);
+			float weight = (float) (position - index);
+			float[] row = rowGains[y] = new float[pointsH*mapPlanes];
+			for (int i = 0; i < row.length; i++)
+				row[i] = gains[index*row.length + i]*(1F - weight) + gains[next*row.length + i]*weight;
+		}
+
+		columnIndex = new int[width];
+		columnWeight = new float[width];
+		for (int x = 0; x < width; x++) {
+			double position = index((x + .5D)/width, originH, spacingH, pointsH);
+			columnIndex[x] = (int) position;
+			columnWeight[x] = (float) (position - columnIndex[x]);
+		}
+
+	}
+
+	@Override double apply(double value, int x, int y, int p) {
+		float[] row = rowGains[y];
+		int mapPlane = java.lang.Math.min(p - plane, mapPlanes - 1);
+		int index = columnIndex[x];
+		int next = java.lang.Math.min(index + 1, pointsH - 1);
+		return value*(row[index*mapPlanes + mapPlane]*(1F - columnWeight[x]) + row[next*mapPlanes + mapPlane]*columnWeight[x]);
+	}
+
+	@Override void release() {
+		rowGains = null;
+		columnIndex = null;
+		columnWeight = null;
+	}
+
+	// Fractional map index for a relative image coordinate, clamped to the map bounds.
+	private static double index(double relative, double origin, double spacing, int points) {
+		double index = spacing == 0D? 0D : (relative - origin)/spacing;
+		return index < 0D? 0D : index > points - 1? points - 1 : index;
+	}
+
+}
@@ -0,0 +1,55 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.opcodes;
+
+import java.nio.ByteBuffer;
+
+/*
+ * See Digital Negative Specification Version 1.4.0.0, page 95.
+ *
+ * Maps pixel values through a polynomial of degree up to 8. Polynomials work on values normalized to the [0, 1] range, so in
+ * OpcodeList1, where pixels are values as stored in the file, they are divided by the largest value their plane may take
+ * first, and scaled back after. Results are clipped to the [0, 1] range, before being scaled back.
+ */
+
+public final class MapPolynomial extends AreaOpcode {
+
+	static final int ID = 8;
+
+	private final double[] coefficients;
+
+	// Largest value of each plane. See Stage.maximum().
+	private double[] maximum;
+
+	MapPolynomial(int version, int flags, ByteBuffer parameters) {
+		super(ID, version, flags, parameters);
+		coefficients = new double[parameters.getInt() + 1];
+		for (int i = 0; i < coefficients.length; i++) coefficients[i] = parameters.getDouble();
+	}
+
+	@Override void prepare(double[][] image, int width, int length, Stage stage) {
+		maximum = new double[image.length];
+		for (int p = 0; p < maximum.length; p++) maximum[p] = stage.maximum(p);
+	}
+
+	// Horner's method.
+	@Override double apply(double value, int x, int y, int p) {
+		value /= maximum[p];
+		double result = coefficients[coefficients.length - 1];
+		for (int i = coefficients.length - 2; i >= 0; i--) result = result*value + coefficients[i];
+		return (result < 0D? 0D : result > 1D? 1D : result)*maximum[p];
+	}
+
+	@Override void release() { maximum = null; }
+
+}
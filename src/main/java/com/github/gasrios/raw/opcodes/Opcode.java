@@ -0,0 +1,56 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.opcodes;
+
+/*
+ * See Digital Negative Specification Version 1.4.0.0, chapter 7, "Opcode List Processing".
+ *
+ * Every opcode starts with a header (opcode id, DNG version, flags and size of its parameters in bytes) followed by its
+ * parameters, all of it stored big endian no matter the byte order of the file itself.
+ *
+ * Opcodes work over images laid out as com.github.gasrios.raw.processor.DngProcessor reads them: one array per plane, holding
+ * sample (x, y) at y*width + x, with x ranging over ImageWidth and y over ImageLength. com.github.gasrios.raw.opcodes.OpcodeList splits the image in tiles and calls
+ * apply() for all of them concurrently, so apply() must write only to pixels inside the tile it was given. Anything shared
+ * among tiles (lookup tables, snapshots of the original image) must be computed in prepare(), which runs once, before the first
+ * tile is processed, and dropped in release().
+ */
+
+public abstract class Opcode {
+
+	// See Digital Negative Specification Version 1.4.0.0, page 86.
+	static final int OPTIONAL = 1, SKIP_IF_PREVIEW = 2;
+
+	public final int id;
+	public final int version;
+	public final int flags;
+
+	Opcode(int id, int version, int flags) {
+		this.id = id;
+		this.version = version;
+		this.flags = flags;
+	}
+
+	public boolean isOptional() { return (flags & OPTIONAL) != 0; }
+
+	public boolean skipIfPreview() { return (flags & SKIP_IF_PREVIEW) != 0; }
+
+	// stage tells what pixel values stand for, which opcodes comparing them with stored values, or scaling them, need.
+	void prepare(double[][] image, int width, int length, Stage stage) {}
+
+	// Tile bounds follow the DNG convention: top and left are inclusive, bottom and right exclusive.
+	abstract void apply(double[][] image, int width, int length, int top, int left, int bottom, int right);
+
+	// Called after all tiles are processed, so whatever prepare() set up does not outlive the image.
+	void release() {}
+
+}
@@ -0,0 +1,108 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.opcodes;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import com.github.gasrios.raw.lang.TiffProcessorException;
+
+/*
+ * See Digital Negative Specification Version 1.4.0.0, page 85.
+ *
+ * Parses the contents of tags OpcodeList1, OpcodeList2 and OpcodeList3 and applies them to an image. The lists are applied at
+ * different stages of processing:
+ *
+ * - OpcodeList1, to raw data, as read from the file;
+ * - OpcodeList2, to raw data, after it has been mapped to linear reference values;
+ * - OpcodeList3, to linear reference values, after demosaicing.
+ *
+ * Opcodes are applied in the order they are stored, each one over tiles of TILE_SIZE x TILE_SIZE pixels processed in parallel.
+ *
+ * "If a DNG reader does not understand an opcode, it should [...] return an error if the opcode is not marked as optional." So
+ * we skip unknown optional opcodes and refuse to process the image otherwise.
+ */
+
+public final class OpcodeList {
+
+	private static final int TILE_SIZE = 256;
+
+	public static OpcodeList parse(byte[] data) throws TiffProcessorException {
+
+		try {
+
+			ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.BIG_ENDIAN);
+			List<Opcode> opcodes = new ArrayList<Opcode>();
+
+			for (int count = buffer.getInt(); count > 0; count--) {
+
+				int id			= buffer.getInt();
+				int version		= buffer.getInt();
+				int flags		= buffer.getInt();
+				int size		= buffer.getInt();
+
+				ByteBuffer parameters = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+				parameters.limit(size);
+				buffer.position(buffer.position() + size);
+
+				switch (id) {
+					case WarpRectilinear.ID			: opcodes.add(new WarpRectilinear(version, flags, parameters));			break;
+					case FixBadPixelsConstant.ID	: opcodes.add(new FixBadPixelsConstant(version, flags, parameters));	break;
+					case MapPolynomial.ID			: opcodes.add(new MapPolynomial(version, flags, parameters));			break;
+					case GainMap.ID					: opcodes.add(new GainMap(version, flags, parameters));					break;
+					default:
+						if ((flags & Opcode.OPTIONAL) == 0) throw new TiffProcessorException("Unsupported opcode: " + id);
+				}
+
+			}
+
+			return new OpcodeList(opcodes);
+
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+
+			throw new TiffProcessorException(e);
+
+		}
+
+	}
+
+	private final List<Opcode> opcodes;
+
+	private OpcodeList(List<Opcode> opcodes) { this.opcodes = Collections.unmodifiableList(opcodes); }
+
+	public List<Opcode> getOpcodes() { return opcodes; }
+
+	// image holds one array per plane, laid out as Opcode describes. See Stage.
+	public void apply(final double[][] image, final int width, final int length, Stage stage) {
+
+		if (image.length == 0 || width == 0 || length == 0) return;
+
+		final int columns = (width + TILE_SIZE - 1)/TILE_SIZE, rows = (length + TILE_SIZE - 1)/TILE_SIZE;
+
+		for (final Opcode opcode: opcodes) {
+			opcode.prepare(image, width, length, stage);
+			IntStream.range(0, columns*rows).parallel().forEach(tile -> {
+				int left = (tile%columns)*TILE_SIZE, top = (tile/columns)*TILE_SIZE;
+				opcode.apply(image, width, length, top, left, java.lang.Math.min(top + TILE_SIZE, length), java.lang.Math.min(left + TILE_SIZE, width));
+			});
+			opcode.release();
+		}
+
+	}
+
+}
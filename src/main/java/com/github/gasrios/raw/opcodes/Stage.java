@@ -0,0 +1,34 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.opcodes;
+
+/*
+ * See Digital Negative Specification Version 1.4.0.0, page 85.
+ *
+ * What pixel values stand for when an opcode list is applied: values as stored in the file for OpcodeList1, linear reference
+ * values for OpcodeList2 and OpcodeList3. Opcodes whose parameters are stored values (Constant, in FixBadPixelsConstant) map
+ * them through level(), and those working on normalized values (MapPolynomial) scale pixels by maximum().
+ */
+
+public interface Stage {
+
+	// Largest value samples of plane may take: 2^BitsPerSample - 1 for stored values, 1 for linear reference values.
+	double maximum(int plane);
+
+	/*
+	 * What a sample stored in the file as stored becomes at this stage, at (x, y) of plane. Must be computed the same way pixels
+	 * are, so that equal stored values lead to equal doubles.
+	 */
+	double level(double stored, int x, int y, int plane);
+
+}
@@ -0,0 +1,140 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.opcodes;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.gasrios.raw.lang.LruCache;
+
+/*
+ * See Digital Negative Specification Version 1.4.0.0, page 86.
+ *
+ * Corrects radial and tangential lens distortion. For each destination pixel, with (dx, dy) being its distance to the optical
+ * center divided by the distance from the optical center to the farthest image corner and r² = dx² + dy²:
+ *
+ *	f   = kr0 + kr1*r² + kr2*r⁴ + kr3*r⁶
+ *	dx' = f*dx + kt0*2*dx*dy + kt1*(r² + 2*dx²)
+ *	dy' = f*dy + kt1*2*dx*dy + kt0*(r² + 2*dy²)
+ *
+ * (dx', dy') is the source position, in the same normalized coordinates, from which the pixel value is bilinearly sampled.
+ *
+ * Source positions only depend on the image geometry and the opcode parameters, which are the same for every file a given
+ * camera and lens combination writes, so they are cached. Keeping one position per pixel would cost more memory than the image
+ * itself, so positions are computed on a grid with one node every GRID pixels and interpolated in between. Distortion models
+ * are smooth enough for the resulting error to be far below a hundredth of a pixel.
+ */
+
+public final class WarpRectilinear extends Opcode {
+
+	static final int ID = 1;
+
+	private static final int GRID = 8;
+
+	private static final LruCache<List<Object>, float[]> GRIDS = new LruCache<List<Object>, float[]>(16);
+
+	private final double[][] coefficients;
+	private final double centerX, centerY;
+
+	// Snapshot of the planes being warped, as every destination pixel may read from anywhere in the source image.
+	private float[][] source;
+
+	// Source positions for each plane, x and y interleaved, one node every GRID pixels.
+	private float[][] grids;
+
+	private int gridWidth;
+
+	WarpRectilinear(int version, int flags, ByteBuffer parameters) {
+		super(ID, version, flags);
+		coefficients = new double[parameters.getInt()][6];
+		for (int i = 0; i < coefficients.length; i++) for (int j = 0; j < 6; j++) coefficients[i][j] = parameters.getDouble();
+		centerX = parameters.getDouble();
+		centerY = parameters.getDouble();
+	}
+
+	@Override void prepare(double[][] image, int width, int length, Stage stage) {
+
+		int planes = java.lang.Math.min(image.length, coefficients.length == 1? image.length : coefficients.length);
+
+		source = new float[planes][width*length];
+		for (int p = 0; p < planes; p++) for (int i = 0; i < width*length; i++) source[p][i] = (float) image[p][i];
+
+		gridWidth = (width - 1)/GRID + 2;
+
+		grids = new float[planes][];
+		for (int p = 0; p < planes; p++) {
+			double[] k = coefficients[java.lang.Math.min(p, coefficients.length - 1)];
+			List<Object> key = Arrays.<Object>asList(width, length, centerX, centerY, k[0], k[1], k[2], k[3], k[4], k[5]);
+			float[] grid = GRIDS.get(key);
+			if (grid == null) GRIDS.put(key, grid = grid(k, width, length));
+			grids[p] = grid;
+		}
+
+	}
+
+	@Override void apply(double[][] image, int width, int length, int top, int left, int bottom, int right) {
+		for (int p = 0; p < grids.length; p++) {
+			float[] grid = grids[p];
+			float[] plane = source[p];
+			for (int y = top; y < bottom; y++) for (int x = left; x < right; x++) {
+				int i = x/GRID, j = y/GRID;
+				float u = (x - i*GRID)/(float) GRID, v = (y - j*GRID)/(float) GRID;
+				int n00 = 2*(j*gridWidth + i), n10 = n00 + 2, n01 = n00 + 2*gridWidth, n11 = n01 + 2;
+				double sx = (1 - v)*((1 - u)*grid[n00] + u*grid[n10]) + v*((1 - u)*grid[n01] + u*grid[n11]);
+				double sy = (1 - v)*((1 - u)*grid[n00 + 1] + u*grid[n10 + 1]) + v*((1 - u)*grid[n01 + 1] + u*grid[n11 + 1]);
+				image[p][y*width + x] = sample(plane, width, length, sx, sy);
+			}
+		}
+	}
+
+	@Override void release() {
+		source = null;
+		grids = null;
+	}
+
+	private float[] grid(double[] k, int width, int length) {
+
+		double x0 = centerX*(width - 1), y0 = centerY*(length - 1);
+		double m = java.lang.Math.sqrt(
+			java.lang.Math.max(x0*x0, (width - 1 - x0)*(width - 1 - x0)) +
+			java.lang.Math.max(y0*y0, (length - 1 - y0)*(length - 1 - y0))
+		);
+		if (m == 0D) m = 1D;
+
+		int gridLength = (length - 1)/GRID + 2;
+		float[] grid = new float[2*gridWidth*gridLength];
+
+		for (int j = 0; j < gridLength; j++) for (int i = 0; i < gridWidth; i++) {
+			double dx = (i*GRID - x0)/m, dy = (j*GRID - y0)/m;
+			double r2 = dx*dx + dy*dy;
+			double f = k[0] + r2*(k[1] + r2*(k[2] + r2*k[3]));
+			grid[2*(j*gridWidth + i)]		= (float) (x0 + m*(f*dx + k[4]*2D*dx*dy + k[5]*(r2 + 2D*dx*dx)));
+			grid[2*(j*gridWidth + i) + 1]	= (float) (y0 + m*(f*dy + k[5]*2D*dx*dy + k[4]*(r2 + 2D*dy*dy)));
+		}
+
+		return grid;
+
+	}
+
+	// Bilinear sampling, with positions outside the image clamped to its borders.
+	private static double sample(float[] plane, int width, int length, double x, double y) {
+		x = x < 0D? 0D : x > width - 1? width - 1 : x;
+		y = y < 0D? 0D : y > length - 1? length - 1 : y;
+		int x1 = (int) x, y1 = (int) y;
+		int x2 = java.lang.Math.min(x1 + 1, width - 1), y2 = java.lang.Math.min(y1 + 1, length - 1);
+		double u = x - x1, v = y - y1;
+		return (1 - v)*((1 - u)*plane[y1*width + x1] + u*plane[y1*width + x2]) + v*((1 - u)*plane[y2*width + x1] + u*plane[y2*width + x2]);
+	}
+
+}
@@ -25,29 +25,42 @@ import com.github.gasrios.raw.lang.TiffProcessorException;
 
 public abstract class AbstractTiffProcessor implements TiffProcessor {
 
-	@Override public void ifd(ImageFileDirectory ifd) throws TiffProcessorException {}
+	@Override public Control ifd(ImageFileDirectory ifd) throws TiffProcessorException { return Control.CONTINUE; }
 
-	@Override public void thumbnailIfd(ImageFileDirectory ifd) throws TiffProcessorException {}
+	@Override public Control thumbnailIfd(ImageFileDirectory ifd) throws TiffProcessorException { return Control.CONTINUE; }
 
-	@Override public void firstIfd(ImageFileDirectory ifd) throws TiffProcessorException {}
+	@Override public Control firstIfd(ImageFileDirectory ifd) throws TiffProcessorException { return Control.CONTINUE; }
 
-	@Override public void highResolutionIfd(ImageFileDirectory ifd) throws TiffProcessorException {}
+	@Override public Control highResolutionIfd(ImageFileDirectory ifd) throws TiffProcessorException { return Control.CONTINUE; }
 
-	@Override public void previewIfd(ImageFileDirectory ifd) throws TiffProcessorException {}
+	@Override public Control previewIfd(ImageFileDirectory ifd) throws TiffProcessorException { return Control.CONTINUE; }
 
-	@Override public void exifIfd(ImageFileDirectory ifd) throws TiffProcessorException {}
+	@Override public Control exifIfd(ImageFileDirectory ifd) throws TiffProcessorException { return Control.CONTINUE; }
 
-	@Override public void interoperabilityIfd(ImageFileDirectory ifd) {}
+	@Override public Control interoperabilityIfd(ImageFileDirectory ifd) { return Control.CONTINUE; }
 
-	@Override public void makerNoteIfd(ImageFileDirectory ifd) {}
+	@Override public Control makerNoteIfd(ImageFileDirectory ifd) { return Control.CONTINUE; }
 
-	@Override public void nextIfd(ImageFileDirectory ifd) throws TiffProcessorException {}
+	@Override public Control nextIfd(ImageFileDirectory ifd) throws TiffProcessorException { return Control.CONTINUE; }
 
-	@Override public void tag(Tag tag, Object value) throws TiffProcessorException {}
+	@Override public Control tag(Tag tag, Object value) throws TiffProcessorException { return Control.CONTINUE; }
 
-	@Override public void xmp(Map<String, String> xmp) throws TiffProcessorException {}
+	@Override public Control pointer(Tag tag, Object offset) throws TiffProcessorException { return Control.CONTINUE; }
 
-	@Override public void xmpTag(String tag, String value) throws TiffProcessorException {}
+	// Processors overriding xmp() or xmpTag() want XMP, those leaving both as they are here do not.
+	@Override public boolean wantsXmp() { return overrides("xmp", Map.class) || overrides("xmpTag", String.class, String.class); }
+
+	private boolean overrides(String name, Class<?>... parameterTypes) {
+		try {
+			return getClass().getMethod(name, parameterTypes).getDeclaringClass() != AbstractTiffProcessor.class;
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override public Control xmp(Map<String, String> xmp) throws TiffProcessorException { return Control.CONTINUE; }
+
+	@Override public Control xmpTag(String tag, String value) throws TiffProcessorException { return Control.CONTINUE; }
 
 	@Override public void end() throws TiffProcessorException {}
 
@@ -44,7 +44,7 @@ public class CFAChunkyUncompressedDngProcessor extends AbstractTiffProcessor {
 	private		int				samplesPerPixel;
 	private		int[]			whiteLevel;
 
-	@Override public final void highResolutionIfd(ImageFileDirectory ifd) throws TiffProcessorException {
+	@Override public final Control highResolutionIfd(ImageFileDirectory ifd) throws TiffProcessorException {
 
 		bitsPerSample	= (int[])	ifd.get(Tag.BitsPerSample);
 		samplesPerPixel	= ((int)	ifd.get(Tag.SamplesPerPixel));
@@ -211,6 +211,8 @@ public class CFAChunkyUncompressedDngProcessor extends AbstractTiffProcessor {
 
 		for (int i = 0; i < maxLevels.length; i++) System.out.print(maxLevels[i] + " ");
 
+		return Control.CONTINUE;
+
 	}
 
 	// TODO assuming SamplesPerPixel = 1
@@ -0,0 +1,32 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.processor;
+
+/*
+ * Returned by com.github.gasrios.raw.processor.TiffProcessor callbacks to tell com.github.gasrios.raw.processor.TiffProcessorEngine
+ * how to go on:
+ *
+ * - CONTINUE visits everything as usual;
+ * - SKIP_SUBTREE skips whatever lies below the current IFD or tag. See TiffProcessor for what this means for each callback;
+ * - STOP ends the visit right away. end() still gets called.
+ *
+ * Values are declared weakest first: when several callbacks answer for the same IFD, the strongest answer wins.
+ */
+
+public enum Control {
+
+	CONTINUE, SKIP_SUBTREE, STOP;
+
+	public Control and(Control other) { return other != null && other.compareTo(this) > 0? other : this; }
+
+}
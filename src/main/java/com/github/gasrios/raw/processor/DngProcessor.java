@@ -13,16 +13,23 @@
 package com.github.gasrios.raw.processor;
 
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import com.github.gasrios.raw.data.ImageFileDirectory;
+import com.github.gasrios.raw.data.ImagePartReader;
 import com.github.gasrios.raw.data.Tag;
+import com.github.gasrios.raw.formats.ColorTransform;
 import com.github.gasrios.raw.formats.ImageCIEXYZ;
-import com.github.gasrios.raw.io.TiffInputStream;
+import com.github.gasrios.raw.lang.ArrayPool;
 import com.github.gasrios.raw.lang.Math;
 import com.github.gasrios.raw.lang.RATIONAL;
+import com.github.gasrios.raw.lang.RationalArray;
 import com.github.gasrios.raw.lang.SRATIONAL;
+import com.github.gasrios.raw.lang.TiffProcessorCancelledException;
 import com.github.gasrios.raw.lang.TiffProcessorException;
 import com.github.gasrios.raw.lang.TiffProcessorRuntimeException;
+import com.github.gasrios.raw.opcodes.OpcodeList;
+import com.github.gasrios.raw.opcodes.Stage;
 
 /*
  * This class makes all transformations deemed too complex to be at com.github.gasrios.raw.data.ImageFileDirectoryLoader when processing
@@ -30,10 +37,14 @@ import com.github.gasrios.raw.lang.TiffProcessorRuntimeException;
  *
  * 1. Reads image strips and converts them to a width X height pixel matrix;
  *
- * 2. Converts camera coordinates to XYZ D50 values;
+ * 2. Maps raw values to linear reference values, applying opcode lists (see tags OpcodeList1, OpcodeList2 and OpcodeList3),
+ *    if any, each at its own stage;
+ *
+ * 3. Converts camera coordinates to XYZ D50 values, then to the color space of the image;
  *
  * This pretty much ends all the dirty work needed to read the TIFF file and makes its information available to people whose
- * business is doing actual photo editing. Just extend this class and consume the info in attribute image.
+ * business is doing actual photo editing. Just extend this class and consume the info in attribute image, stored as set with
+ * image.setStorage() before processing starts (see com.github.gasrios.raw.formats.Storage).
  *
  * TODO assuming Orientation = 1
  * TODO assuming SamplesPerPixel = 3. See Tags ReductionMatrix1 and ReductionMatrix2.
@@ -41,17 +52,32 @@ import com.github.gasrios.raw.lang.TiffProcessorRuntimeException;
 
 public class DngProcessor<Image extends ImageCIEXYZ> extends AbstractTiffProcessor {
 
-	protected	double[]	cameraNeutral;
-	protected	double[][]	cameraToXYZ_D50;
-	protected	Image		image;
+	protected	double[]		cameraNeutral;
+	protected	double[][]		cameraToXYZ_D50;
+	protected	Image			image;
+
+	private		int[]			bitsPerSample;
+	private		int				samplesPerPixel;
+	private		int[]			whiteLevel;
+	private		ColorTransform	cameraToImage;
+	private		ArrayPool		pool;
+
+	// See linearization().
+	private		double[]		linearizationTable, blackLevel, blackLevelDeltaH, blackLevelDeltaV, whiteRange;
+	private		int				blackRows, blackColumns;
 
-	private		int[]		bitsPerSample;
-	private		int			samplesPerPixel;
-	private		int[]		whiteLevel;
+	// Converted rows of images processed in single precision, null otherwise. See com.github.gasrios.raw.formats.Storage.
+	private		float[][]		singleRow;
 
-	public DngProcessor(Image image) { this.image = image; }
+	public DngProcessor(Image image) { this(image, ArrayPool.SHARED); }
 
-	@Override public void firstIfd(ImageFileDirectory ifd) {
+	// Strip buffers and rows of pixels are taken from pool, and given back as soon as they are done with.
+	public DngProcessor(Image image, ArrayPool pool) {
+		this.image = image;
+		this.pool = pool;
+	}
+
+	@Override public Control firstIfd(ImageFileDirectory ifd) {
 
 		/*
 		 * See https://forums.adobe.com/message/9222350
@@ -67,10 +93,11 @@ public class DngProcessor<Image extends ImageCIEXYZ> extends AbstractTiffProcess
 		cameraNeutral = RATIONAL.asDoubleArray((RATIONAL[]) ifd.get(Tag.AsShotNeutral));
 
 		cameraToXYZ_D50 = Math.cameraToXYZ_D50(
+				(String)		ifd.get(Tag.UniqueCameraModel),
 				(RATIONAL[])	ifd.get(Tag.AnalogBalance),
 				cameraNeutral,
-				(int)			ifd.get(Tag.CalibrationIlluminant1),
-				(int)			ifd.get(Tag.CalibrationIlluminant2),
+				illuminant(ifd, Tag.CalibrationIlluminant1),
+				illuminant(ifd, Tag.CalibrationIlluminant2),
 				(SRATIONAL[])	ifd.get(Tag.CameraCalibration1),
 				(SRATIONAL[])	ifd.get(Tag.CameraCalibration2),
 				(SRATIONAL[])	ifd.get(Tag.ColorMatrix1),
@@ -79,9 +106,24 @@ public class DngProcessor<Image extends ImageCIEXYZ> extends AbstractTiffProcess
 				(SRATIONAL[])	ifd.get(Tag.ForwardMatrix2)
 			);
 
+		return Control.CONTINUE;
+
+	}
+
+	/*
+	 * Cancellation (see com.github.gasrios.raw.lang.CancellationToken) is checked for every strip and row. Once cancelled, the
+	 * image is closed right away, so its buffers do not outlive the processing they were allocated for.
+	 */
+	@Override public final Control highResolutionIfd(ImageFileDirectory ifd) throws TiffProcessorException {
+		try {
+			return highResolutionImage(ifd);
+		} catch (TiffProcessorCancelledException e) {
+			image.close();
+			throw e;
+		}
 	}
 
-	@Override public final void highResolutionIfd(ImageFileDirectory ifd) throws TiffProcessorException {
+	private Control highResolutionImage(ImageFileDirectory ifd) throws TiffProcessorException {
 
 		if (
 			34892	!= (int) ifd.get(Tag.PhotometricInterpretation)	||
@@ -99,33 +141,277 @@ public class DngProcessor<Image extends ImageCIEXYZ> extends AbstractTiffProcess
 		int width	= (int)(long)	ifd.get(Tag.ImageWidth);
 		int length	= (int)(long)	ifd.get(Tag.ImageLength);
 
-		image.setImage(new double[width][length][0]);
+		image.allocate(width, length);
 
-		int pixelSize = 0;
-		for (int i = 0; i < samplesPerPixel; i++) pixelSize += 1 + (bitsPerSample[i]-1)/8;
+		int pixelSize = pixelSize();
 
 		int rowsPerStrip = (int) (long) ifd.get(Tag.RowsPerStrip);
 
-		// See TIFF 6.0 Specification, page 39
-		for (int i = 0; i < (int) ((length + rowsPerStrip - 1) / rowsPerStrip); i++) {
-			short[] strip = ifd.getStripAsShortArray(i);
-			for (int j = 0; pixelSize*j < strip.length; j = j + 1)
-				image.getImage()[j%width][j/width + i*rowsPerStrip] =
-					processConvertedPixel(
-						image.fromXYZ(
-								Math.multiply(
-									cameraToXYZ_D50,
-									crop(processRawSensorLevels(readSensorLevels(strip, j*pixelSize, ifd.getByteOrder())))
-								)
-						)
+		cameraToImage = image.compile(cameraToXYZ_D50);
+
+		linearization(ifd);
+
+		OpcodeList[] opcodeLists = opcodeLists(ifd);
+
+		// One row of pixels in planar layout, so color conversion runs over whole rows. See com.github.gasrios.raw.lang.Kernels.
+		double[][] row = new double[][] { pool.doubles(width), pool.doubles(width), pool.doubles(width) };
+		if (image.isSinglePrecision()) singleRow = new float[][] { pool.floats(width), pool.floats(width), pool.floats(width) };
+
+		// Strips are read in the background, ahead of conversion.
+		try (ImagePartReader strips = new ImagePartReader(ifd, pool)) {
+
+			// Without opcodes to apply, each row can be converted as soon as it is read.
+			if (opcodeLists.length == 0) {
+				double[] sensorLevels = new double[samplesPerPixel];
+				readRows(ifd, strips, width, length, rowsPerStrip, pixelSize, (strip, offset, y) -> {
+					for (int x = 0; x < width; x++) set(
+						row, x,
+						crop(processRawSensorLevels(linearize(
+							readSensorLevels(strip, offset + x*pixelSize, ifd.getByteOrder(), sensorLevels), x, y
+						)))
 					);
+					convert(row, width, y);
+				});
+				return Control.CONTINUE;
+			}
+
+			processWithOpcodes(ifd, strips, opcodeLists, row, width, length, rowsPerStrip, pixelSize);
+			return Control.CONTINUE;
+
+		} finally {
+			for (double[] plane: row) pool.release(plane);
+			if (singleRow != null) for (float[] plane: singleRow) pool.release(plane);
+			singleRow = null;
+		}
+
+	}
+
+	// Called for each row of the image, with the strip holding it and the offset of its first pixel in the strip.
+	private interface RowReader { void read(byte[] strip, int offset, int y) throws TiffProcessorException; }
+
+	// See TIFF 6.0 Specification, page 39
+	private void readRows(
+		ImageFileDirectory ifd, ImagePartReader strips, int width, int length, int rowsPerStrip, int pixelSize, RowReader reader
+	) throws TiffProcessorException {
+		for (int i = 0; i < ifd.getImagePartCount(); i++) {
+			byte[] strip = strips.take(i);
+			try {
+				int rows = (int) java.lang.Math.min(
+					java.lang.Math.min(rowsPerStrip, length - i*rowsPerStrip),
+					ifd.getStripByteCount(i)/(pixelSize*width)
+				);
+				for (int j = 0; j < rows; j++) {
+					ifd.checkCancelled();
+					reader.read(strip, j*width*pixelSize, i*rowsPerStrip + j);
+				}
+			} finally {
+				pool.release(strip);
+			}
+		}
+	}
+
+	/*
+	 * See Digital Negative Specification Version 1.4.0.0, pages 85 and 86. Each list is applied at its own stage:
+	 *
+	 * - OpcodeList1 to raw data, as stored in the file;
+	 * - OpcodeList2 to raw data mapped to linear reference values (see linearize());
+	 * - OpcodeList3 after demosaicing. This is a linear DNG, so there is no demosaicing to be done and it follows OpcodeList2.
+	 */
+	private void processWithOpcodes(
+		ImageFileDirectory ifd, ImagePartReader strips, OpcodeList[] opcodeLists, double[][] row,
+		int width, int length, int rowsPerStrip, int pixelSize
+	) throws TiffProcessorException {
+
+		if ((long) width*length > Integer.MAX_VALUE)
+			throw new TiffProcessorRuntimeException("Image too large to apply opcodes to: " + width + "x" + length);
+
+		/*
+		 * Opcodes may need any pixel of the image, so sensor levels for all of them must be read before conversion starts. They
+		 * are kept in planar layout, one array per sample plane, as com.github.gasrios.raw.opcodes.Opcode describes.
+		 */
+		double[][] planes = new double[samplesPerPixel][];
+		try {
+
+			for (int i = 0; i < samplesPerPixel; i++) planes[i] = pool.doubles(width*length);
+
+			double[] sensorLevels = new double[samplesPerPixel];
+			readRows(ifd, strips, width, length, rowsPerStrip, pixelSize, (strip, offset, y) -> {
+				for (int x = 0; x < width; x++) {
+					readSensorLevels(strip, offset + x*pixelSize, ifd.getByteOrder(), sensorLevels);
+					for (int i = 0; i < samplesPerPixel; i++) planes[i][y*width + x] = sensorLevels[i];
+				}
+			});
+
+			if (opcodeLists[0] != null) apply(ifd, opcodeLists[0], planes, width, length, stored);
+
+			for (int i = 0; i < samplesPerPixel; i++)
+				for (int y = 0; y < length; y++)
+					for (int x = 0; x < width; x++) planes[i][y*width + x] = linearize(planes[i][y*width + x], x, y, i);
+
+			if (opcodeLists[1] != null) apply(ifd, opcodeLists[1], planes, width, length, linear);
+			if (opcodeLists[2] != null) apply(ifd, opcodeLists[2], planes, width, length, linear);
+
+			for (int y = 0; y < length; y++) {
+				ifd.checkCancelled();
+				for (int x = 0; x < width; x++) {
+					for (int i = 0; i < samplesPerPixel; i++) sensorLevels[i] = planes[i][y*width + x];
+					set(row, x, crop(processRawSensorLevels(sensorLevels)));
+				}
+				convert(row, width, y);
+			}
+
+		} finally {
+			for (double[] plane: planes) pool.release(plane);
 		}
 
 	}
 
+	private static void apply(ImageFileDirectory ifd, OpcodeList opcodeList, double[][] planes, int width, int length, Stage stage)
+			throws TiffProcessorException {
+		ifd.checkCancelled();
+		opcodeList.apply(planes, width, length, stage);
+	}
+
+	// See com.github.gasrios.raw.opcodes.Stage. OpcodeList1 gets values as stored in the file, as readSensorLevels() reads them.
+	private final Stage stored = new Stage() {
+		@Override public double maximum(int plane) {
+			return (1L << bitsPerSample[java.lang.Math.min(plane, bitsPerSample.length - 1)]) - 1;
+		}
+		@Override public double level(double stored, int x, int y, int plane) { return stored; }
+	};
+
+	// OpcodeList2 and OpcodeList3 get linear reference values, as linearize() maps them.
+	private final Stage linear = new Stage() {
+		@Override public double maximum(int plane) { return 1D; }
+		@Override public double level(double stored, int x, int y, int plane) { return linearize(stored, x, y, plane); }
+	};
+
+	// OpcodeList1, OpcodeList2 and OpcodeList3, in this order, null for those missing, or none at all if all of them are.
+	private OpcodeList[] opcodeLists(ImageFileDirectory ifd) throws TiffProcessorException {
+		OpcodeList[] opcodeLists = new OpcodeList[3];
+		boolean any = false;
+		Tag[] tags = new Tag[] { Tag.OpcodeList1, Tag.OpcodeList2, Tag.OpcodeList3 };
+		for (int i = 0; i < tags.length; i++) if (ifd.containsKey(tags[i])) {
+			opcodeLists[i] = OpcodeList.parse((byte[]) ifd.get(tags[i]));
+			any = true;
+		}
+		return any? opcodeLists : new OpcodeList[0];
+	}
+
+	/*
+	 * See Digital Negative Specification Version 1.4.0.0, page 85: raw values are mapped to linear reference values through
+	 * LinearizationTable, if any, then black levels (BlackLevel, repeated as BlackLevelRepeatDim says, plus BlackLevelDeltaH
+	 * and BlackLevelDeltaV) are subtracted, and the result is scaled by the inverse of WhiteLevel minus the largest black level
+	 * of its sample plane.
+	 */
+	private void linearization(ImageFileDirectory ifd) {
+
+		linearizationTable = ifd.containsKey(Tag.LinearizationTable)? numbers(ifd.get(Tag.LinearizationTable)) : null;
+
+		blackLevel = ifd.containsKey(Tag.BlackLevel)? numbers(ifd.get(Tag.BlackLevel)) : new double[] { 0D };
+		int[] repeatDim = ifd.containsKey(Tag.BlackLevelRepeatDim)? (int[]) ifd.get(Tag.BlackLevelRepeatDim) : new int[] { 1, 1 };
+		blackRows = repeatDim[0];
+		blackColumns = repeatDim[1];
+		blackLevelDeltaH = ifd.containsKey(Tag.BlackLevelDeltaH)? numbers(ifd.get(Tag.BlackLevelDeltaH)) : null;
+		blackLevelDeltaV = ifd.containsKey(Tag.BlackLevelDeltaV)? numbers(ifd.get(Tag.BlackLevelDeltaV)) : null;
+
+		double maxDelta = max(blackLevelDeltaH) + max(blackLevelDeltaV);
+		whiteRange = new double[samplesPerPixel];
+		for (int i = 0; i < samplesPerPixel; i++) {
+			double maxBlack = Double.NEGATIVE_INFINITY;
+			for (int j = i; j < blackLevel.length; j += samplesPerPixel) maxBlack = java.lang.Math.max(maxBlack, blackLevel[j]);
+			// A single value applies to all sample planes.
+			if (maxBlack == Double.NEGATIVE_INFINITY) maxBlack = blackLevel[0];
+			whiteRange[i] = whiteLevel[i] - (maxBlack + maxDelta);
+		}
+
+	}
+
+	private double[] linearize(double[] sensorLevels, int x, int y) {
+		for (int i = 0; i < sensorLevels.length; i++) sensorLevels[i] = linearize(sensorLevels[i], x, y, i);
+		return sensorLevels;
+	}
+
+	// Sample i of pixel (x, y).
+	private double linearize(double level, int x, int y, int i) {
+		if (linearizationTable != null)
+			level = linearizationTable[(int) java.lang.Math.min(level, linearizationTable.length - 1)];
+		int index = ((y%blackRows)*blackColumns + x%blackColumns)*samplesPerPixel + i;
+		double black = blackLevel[index < blackLevel.length? index : 0];
+		if (blackLevelDeltaH != null) black += blackLevelDeltaH[x];
+		if (blackLevelDeltaV != null) black += blackLevelDeltaV[y];
+		return (level - black)/whiteRange[i];
+	}
+
+	// Single illuminant files may leave out CalibrationIlluminant2, and CalibrationIlluminant1 defaults to 0 (unknown).
+	private static int illuminant(ImageFileDirectory ifd, Tag tag) {
+		Object illuminant = ifd.get(tag);
+		return illuminant == null? 0 : ((Number) illuminant).intValue();
+	}
+
+	private static double max(double[] values) {
+		double max = 0D;
+		if (values != null) for (double value: values) max = java.lang.Math.max(max, value);
+		return max;
+	}
+
+	// LinearizationTable is SHORT, BlackLevel SHORT, LONG or RATIONAL, and BlackLevelDeltaH and BlackLevelDeltaV SRATIONAL.
+	private static double[] numbers(Object value) {
+		if (value instanceof int[]) return Arrays.stream((int[]) value).asDoubleStream().toArray();
+		if (value instanceof long[]) return Arrays.stream((long[]) value).asDoubleStream().toArray();
+		if (value instanceof RationalArray) return ((RationalArray) value).asDoubleArray();
+		if (value instanceof Number[]) return Arrays.stream((Number[]) value).mapToDouble(Number::doubleValue).toArray();
+		return new double[] { ((Number) value).doubleValue() };
+	}
+
+	private int pixelSize() {
+		int pixelSize = 0;
+		for (int i = 0; i < samplesPerPixel; i++) pixelSize += 1 + (bitsPerSample[i]-1)/8;
+		return pixelSize;
+	}
+
+	private static double[] get(double[][] row, int x, double[] pixel) {
+		pixel[0] = row[0][x];
+		pixel[1] = row[1][x];
+		pixel[2] = row[2][x];
+		return pixel;
+	}
+
+	private static void set(double[][] row, int x, double[] pixel) {
+		row[0][x] = pixel[0];
+		row[1][x] = pixel[1];
+		row[2][x] = pixel[2];
+	}
+
+	// Planes may be longer than width. See com.github.gasrios.raw.lang.ArrayPool.
+	private void convert(double[][] row, int width, int y) {
+		if (singleRow != null) {
+			convert(row, singleRow, width, y);
+			return;
+		}
+		cameraToImage.apply(row[0], row[1], row[2], width);
+		double[] pixel = new double[3];
+		for (int x = 0; x < width; x++) set(row, x, processConvertedPixel(get(row, x, pixel)));
+		image.getBuffer().setRow(y, row[0], row[1], row[2]);
+	}
+
+	// Sensor levels are narrowed to float once linearized, and converted in single precision from there on.
+	private void convert(double[][] row, float[][] single, int width, int y) {
+		for (int c = 0; c < 3; c++) for (int x = 0; x < width; x++) single[c][x] = (float) row[c][x];
+		cameraToImage.apply(single[0], single[1], single[2], width);
+		double[] pixel = new double[3];
+		for (int x = 0; x < width; x++) {
+			for (int c = 0; c < 3; c++) pixel[c] = single[c][x];
+			double[] converted = processConvertedPixel(pixel);
+			for (int c = 0; c < 3; c++) single[c][x] = (float) converted[c];
+		}
+		image.getBuffer().setRow(y, single[0], single[1], single[2]);
+	}
+
 	/*
 	 * We may want to use raw sensor data to recover info otherwise discarded when converting to CIE 1931 XYZ. These methods
-	 * provide extension points for subclasses that might want to do this.
+	 * provide extension points for subclasses that might want to do this. The array passed in is reused from one pixel to the
+	 * next, so implementations must copy, not keep, it; they may change it in place and return it.
 	 */
 	protected double[] processRawSensorLevels(double[] sensorLevels) { return sensorLevels; }
 
@@ -140,24 +426,20 @@ public class DngProcessor<Image extends ImageCIEXYZ> extends AbstractTiffProcess
 		return sensorLevels;
 	}
 
-	private final double[] readSensorLevels(short[] strip, int offset, ByteOrder byteOrder) {
-		double[] sensorLevels = new double[samplesPerPixel];
+	// Values as stored in the file, written to sensorLevels, which is returned. See linearize().
+	private final double[] readSensorLevels(byte[] strip, int offset, ByteOrder byteOrder, double[] sensorLevels) {
+		boolean littleEndian = byteOrder.equals(ByteOrder.LITTLE_ENDIAN);
 		for (int i = 0; i < samplesPerPixel; i++) {
-			short[] sample;
 			// See Digital Negative Specification Version 1.4.0.0, page 18.
-			if (bitsPerSample[i] == 8) {
-				sample = new short[1];
-				System.arraycopy(strip, offset, sample, 0, 1);
-			} else if (bitsPerSample[i] <= 16) {
-				sample = new short[2];
-				System.arraycopy(strip, offset, sample, 0, 2);
-			} else if (bitsPerSample[i] <= 32) {
-				sample = new short[4];
-				System.arraycopy(strip, offset, sample, 0, 4);
-			} else {
-				throw new TiffProcessorRuntimeException("Invalid bitsPerSample value of " + bitsPerSample[i]);
-			}
-			sensorLevels[i] = TiffInputStream.toInt(sample, byteOrder)/(double) whiteLevel[i];
+			int size;
+			if (bitsPerSample[i] == 8) size = 1;
+			else if (bitsPerSample[i] <= 16) size = 2;
+			else if (bitsPerSample[i] <= 32) size = 4;
+			else throw new TiffProcessorRuntimeException("Invalid bitsPerSample value of " + bitsPerSample[i]);
+			long sample = 0;
+			for (int j = 0; j < size; j++)
+				sample |= (strip[offset + j] & 0xFFL) << 8*(littleEndian? j : size - 1 - j);
+			sensorLevels[i] = sample;
 			offset += 1 + (bitsPerSample[i]-1)/8;
 		}
 		return sensorLevels;
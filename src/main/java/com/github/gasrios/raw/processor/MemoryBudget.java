@@ -0,0 +1,42 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.processor;
+
+/*
+ * A counting semaphore over bytes: acquire() blocks until the bytes asked for fit in what is left of the budget. Asking for
+ * more than the whole budget is allowed, but only once everything else has been released, so one huge file gets processed
+ * alone instead of never.
+ */
+
+final class MemoryBudget {
+
+	private final long total;
+	private long available;
+
+	MemoryBudget(long total) {
+		if (total <= 0) throw new IllegalArgumentException("Memory budget must be positive: " + total);
+		this.total = available = total;
+	}
+
+	synchronized void acquire(long bytes) throws InterruptedException {
+		bytes = java.lang.Math.min(bytes, total);
+		while (available < bytes) wait();
+		available -= bytes;
+	}
+
+	synchronized void release(long bytes) {
+		available += java.lang.Math.min(bytes, total);
+		notifyAll();
+	}
+
+}
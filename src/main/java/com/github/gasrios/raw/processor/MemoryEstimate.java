@@ -0,0 +1,52 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.processor;
+
+/*
+ * Bytes needed to process a file, as estimated by com.github.gasrios.raw.processor.MemoryEstimator, split by pipeline stage:
+ *
+ * - ioBuffers: file contents buffered while reading it, plus one strip at a time;
+ * - rawImage: sensor levels, when they must all be read before conversion starts (files with opcode lists);
+ * - convertedImage: the image in its final color space;
+ * - renderedImage: the 8-bit sRGB image built to display or save the converted one.
+ *
+ * offHeap is the part of the total held outside the Java heap.
+ */
+
+public final class MemoryEstimate {
+
+	public final long ioBuffers, rawImage, convertedImage, renderedImage, offHeap;
+
+	MemoryEstimate(long ioBuffers, long rawImage, long convertedImage, long renderedImage, long offHeap) {
+		this.ioBuffers = ioBuffers;
+		this.rawImage = rawImage;
+		this.convertedImage = convertedImage;
+		this.renderedImage = renderedImage;
+		this.offHeap = offHeap;
+	}
+
+	public long getTotal() { return ioBuffers + rawImage + convertedImage + renderedImage; }
+
+	/*
+	 * Not every stage holds its memory at the same time: sensor levels are gone by the time the converted image is rendered.
+	 * I/O buffers live as long as the file is being processed.
+	 */
+	public long getPeak() { return ioBuffers + java.lang.Math.max(rawImage + convertedImage, convertedImage + renderedImage); }
+
+	@Override public String toString() {
+		return
+			"I/O buffers: " + ioBuffers + ", raw image: " + rawImage + ", converted image: " + convertedImage +
+			", rendered image: " + renderedImage + ", off heap: " + offHeap + ", peak: " + getPeak();
+	}
+
+}
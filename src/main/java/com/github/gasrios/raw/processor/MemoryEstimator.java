@@ -0,0 +1,156 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.processor;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+import com.github.gasrios.raw.data.ImageFileDirectory;
+import com.github.gasrios.raw.data.ImagePartReader;
+import com.github.gasrios.raw.data.Tag;
+import com.github.gasrios.raw.formats.ImageBuffer;
+import com.github.gasrios.raw.formats.Location;
+import com.github.gasrios.raw.formats.Storage;
+
+/*
+ * Estimates the memory com.github.gasrios.raw.processor.DngProcessor needs to process a file from its IFD tree alone, before
+ * any image data is read. See com.github.gasrios.raw.processor.MemoryEstimate.
+ *
+ * Estimates are made for a pipeline configuration:
+ *
+ * - storage and location of the converted image, see com.github.gasrios.raw.formats.ImageCIEXYZ.setStorage() and setLocation();
+ * - region, the part of the image kept once converted, or null for all of it;
+ * - scale of the rendered image relative to region, or zero if the image is not rendered.
+ *
+ * All high resolution IFDs (NewSubFileType = 0) in the tree are accounted for. They are processed one after the other, so
+ * only the largest one counts for raw, converted and rendered images.
+ *
+ * Estimates are made assuming a 64-bit JVM with compressed references. They are upper bounds for stages that happen the way
+ * they are described, not for whatever a TiffProcessor implementation may do on its own.
+ */
+
+public final class MemoryEstimator {
+
+	private final Storage storage;
+	private final Location location;
+	private final Rectangle region;
+	private final double scale;
+
+	public MemoryEstimator() { this(Storage.DOUBLE, Location.HEAP, null, 1D); }
+
+	public MemoryEstimator(Storage storage, Location location, Rectangle region, double scale) {
+		this.storage = storage;
+		this.location = location;
+		this.region = region;
+		this.scale = scale;
+	}
+
+	public MemoryEstimate estimate(ImageFileDirectory ifd) {
+		// Last byte read from the file, largest strip, then raw, converted and rendered images, then largest high resolution image as stored.
+		long[] estimate = new long[6];
+		estimate(ifd, estimate);
+		return new MemoryEstimate(
+			ioBuffers(estimate[0], estimate[1], estimate[5]), estimate[2], estimate[3], estimate[4], location == Location.HEAP? 0 : estimate[3]
+		);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void estimate(ImageFileDirectory ifd, long[] estimate) {
+
+		for (; ifd != null; ifd = ifd.getNext()) {
+
+			boolean highResolution = ifd.containsKey(Tag.NewSubFileType) && (long) ifd.get(Tag.NewSubFileType) == 0;
+
+			for (Tag[] part: new Tag[][] { { Tag.StripOffsets, Tag.StripByteCounts }, { Tag.TileOffsets, Tag.TileByteCounts } }) {
+				long[] offsets = numbers(ifd.get(part[0])), byteCounts = numbers(ifd.get(part[1]));
+				long image = 0;
+				for (int i = 0; i < java.lang.Math.min(offsets.length, byteCounts.length); i++) {
+					estimate[0] = java.lang.Math.max(estimate[0], offsets[i] + byteCounts[i]);
+					estimate[1] = java.lang.Math.max(estimate[1], byteCounts[i]);
+					image += byteCounts[i];
+				}
+				if (highResolution) estimate[5] = java.lang.Math.max(estimate[5], image);
+			}
+
+			if (highResolution && ifd.containsKey(Tag.ImageWidth) && ifd.containsKey(Tag.ImageLength)) {
+
+				int width = (int) number(ifd.get(Tag.ImageWidth)), length = (int) number(ifd.get(Tag.ImageLength));
+				int samples = ifd.containsKey(Tag.SamplesPerPixel)? (int) ifd.get(Tag.SamplesPerPixel) : 1;
+
+				/*
+				 * See DngProcessor.highResolutionIfd(): one array of doubles per sample plane, taken from a
+				 * com.github.gasrios.raw.lang.ArrayPool, so its length may be rounded up to a power of two.
+				 */
+				if (ifd.containsKey(Tag.OpcodeList1) || ifd.containsKey(Tag.OpcodeList2) || ifd.containsKey(Tag.OpcodeList3)) {
+					long plane = (long) width*length;
+					if (plane > 1) plane = Long.highestOneBit(plane - 1) << 1;
+					estimate[2] = java.lang.Math.max(estimate[2], samples*(ARRAY_HEADER + plane*Double.BYTES));
+				}
+
+				Rectangle kept = region == null? new Rectangle(width, length) : region.intersection(new Rectangle(width, length));
+				if (kept.isEmpty()) continue;
+
+				estimate[3] = java.lang.Math.max(estimate[3], ImageBuffer.size(storage, location, kept.width, kept.height));
+
+				// See com.github.gasrios.raw.swing.Image: one int per pixel.
+				long rendered = (long) java.lang.Math.ceil(kept.width*scale)*(long) java.lang.Math.ceil(kept.height*scale)*Integer.BYTES;
+				estimate[4] = java.lang.Math.max(estimate[4], rendered);
+
+			}
+
+			if (ifd.containsKey(Tag.SubIFDs))
+				for (ImageFileDirectory subIfd: (List<ImageFileDirectory>) ifd.get(Tag.SubIFDs)) estimate(subIfd, estimate);
+
+		}
+
+	}
+
+	/*
+	 * See com.github.gasrios.raw.io.TiffInputStream: everything from the beginning of the file to the last byte read is kept
+	 * in a buffer whose size doubles as needed, starting at 8KiB. Strips are then copied to byte arrays taken from a
+	 * com.github.gasrios.raw.lang.ArrayPool, whose lengths are rounded up to powers of two.
+	 *
+	 * See com.github.gasrios.raw.data.ImagePartReader: up to DEFAULT_PREFETCH bytes of strips wait to be converted while the
+	 * next run, itself up to DEFAULT_PREFETCH bytes or a single larger strip, is read, and one more strip is being converted.
+	 * Never more than the whole image, as stored.
+	 */
+	private static long ioBuffers(long end, long strip, long image) {
+		long buffer = 8192;
+		while (buffer < end) buffer *= 2;
+		long array = strip;
+		if (strip > 4096) for (array = 4096; array < strip; array *= 2);
+		long strips = 1;
+		if (strip > 0) {
+			long window = ImagePartReader.DEFAULT_PREFETCH + java.lang.Math.max(ImagePartReader.DEFAULT_PREFETCH, strip);
+			strips = java.lang.Math.max(1, java.lang.Math.min((image + strip - 1)/strip, (window + strip - 1)/strip + 1));
+		}
+		return (end == 0? 0 : java.lang.Math.min(buffer, Integer.MAX_VALUE)) + (strip == 0? 0 : strips*(ARRAY_HEADER + array));
+	}
+
+	// SHORT and LONG values, stored as int, long or arrays of either.
+	private static long number(Object value) { return value instanceof Integer? (int) value : (long) value; }
+
+	private static long[] numbers(Object value) {
+		if (value == null) return new long[0];
+		if (value instanceof long[]) return (long[]) value;
+		if (value instanceof int[]) {
+			long[] numbers = new long[((int[]) value).length];
+			for (int i = 0; i < numbers.length; i++) numbers[i] = ((int[]) value)[i];
+			return numbers;
+		}
+		return new long[] { number(value) };
+	}
+
+	private static final long ARRAY_HEADER = 16;
+
+}
@@ -0,0 +1,241 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.processor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoublePredicate;
+import java.util.stream.IntStream;
+
+import com.github.gasrios.raw.data.Tag;
+import com.github.gasrios.raw.io.TiffInputStream;
+import com.github.gasrios.raw.lang.TiffProcessorException;
+
+/*
+ * Values of a few tags for many files, one row per file and one column per tag, as built by
+ * com.github.gasrios.raw.processor.MetadataCatalogBuilder.
+ *
+ * Columns are primitive arrays: numbers are doubles, NaN where files have no value, and strings are codes into a dictionary of
+ * the distinct values in the column, -1 where files have no value. Scans over a column touch nothing else, and comparing
+ * strings means comparing codes.
+ *
+ * Catalogs are saved with write() and read back with open(), which maps the file into memory instead of reading it: columns
+ * are used where they are, in the file, and only pages actually scanned are ever read. Only file names and dictionaries are
+ * copied to the heap. Files may take up to 2GiB.
+ */
+
+public final class MetadataCatalog {
+
+	static final class Column {
+
+		final Tag tag;
+
+		// One of them is null.
+		final DoubleBuffer numbers;
+		final IntBuffer codes;
+
+		final String[] dictionary;
+		private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+		Column(Tag tag, DoubleBuffer numbers) {
+			this.tag = tag;
+			this.numbers = numbers;
+			codes = null;
+			dictionary = null;
+		}
+
+		Column(Tag tag, IntBuffer codes, String[] dictionary) {
+			this.tag = tag;
+			numbers = null;
+			this.codes = codes;
+			this.dictionary = dictionary;
+			for (int i = 0; i < dictionary.length; i++) index.put(dictionary[i], i);
+		}
+
+	}
+
+	private final String[] files;
+	private final Map<Tag, Column> columns = new HashMap<Tag, Column>();
+	private final List<Tag> tags = new ArrayList<Tag>();
+
+	MetadataCatalog(String[] files, List<Column> columns) {
+		this.files = files;
+		for (Column column: columns) {
+			this.columns.put(column.tag, column);
+			tags.add(column.tag);
+		}
+	}
+
+	public int size() { return files.length; }
+
+	public Path getFile(int row) { return Paths.get(files[row]); }
+
+	// In the order they were given to MetadataCatalogBuilder.
+	public List<Tag> getTags() { return Collections.unmodifiableList(tags); }
+
+	public boolean isNumeric(Tag tag) {
+		if (!columns.containsKey(tag)) throw new IllegalArgumentException("Not in catalog: " + tag);
+		return columns.get(tag).numbers != null;
+	}
+
+	// NaN if the file has no value for tag.
+	public double getNumber(int row, Tag tag) { return column(tag, true).numbers.get(row); }
+
+	// Null if the file has no value for tag.
+	public String getString(int row, Tag tag) {
+		Column column = column(tag, false);
+		int code = column.codes.get(row);
+		return code < 0? null : column.dictionary[code];
+	}
+
+	// Distinct values of tag, in no particular order.
+	public List<String> getValues(Tag tag) {
+		return Collections.unmodifiableList(Arrays.asList(column(tag, false).dictionary));
+	}
+
+	// Rows whose values for tag satisfy predicate. Missing values are NaN.
+	public IntStream rows(Tag tag, DoublePredicate predicate) {
+		DoubleBuffer numbers = column(tag, true).numbers;
+		return IntStream.range(0, files.length).filter(row -> predicate.test(numbers.get(row)));
+	}
+
+	// Rows whose values for tag equal value.
+	public IntStream rows(Tag tag, String value) {
+		Column column = column(tag, false);
+		IntBuffer codes = column.codes;
+		Integer code = column.index.get(value);
+		return code == null? IntStream.empty() : IntStream.range(0, files.length).filter(row -> codes.get(row) == code);
+	}
+
+	private Column column(Tag tag, boolean numeric) {
+		Column column = columns.get(tag);
+		if (column == null) throw new IllegalArgumentException("Not in catalog: " + tag);
+		if ((column.numbers != null) != numeric) throw new IllegalArgumentException((numeric? "Not a numeric column: " : "Not a string column: ") + tag);
+		return column;
+	}
+
+	/*
+	 * Files hold, all numbers big endian:
+	 *
+	 * - MAGIC, VERSION, the number of rows and the number of columns;
+	 * - File names, one per row;
+	 * - For each column, its tag number and whether it holds numbers or strings, then either one double per row, or the
+	 *   dictionary followed by one int per row.
+	 *
+	 * Strings are their length in bytes followed by their UTF-8 encoding.
+	 */
+
+	private static final int MAGIC = 0x52415743, VERSION = 1;
+
+	private static final byte NUMBERS = 0, STRINGS = 1;
+
+	public void write(Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(files.length);
+			out.writeInt(tags.size());
+			for (String name: files) string(out, name);
+			for (Tag tag: tags) {
+				Column column = columns.get(tag);
+				out.writeShort(tag.number);
+				if (column.numbers != null) {
+					out.writeByte(NUMBERS);
+					for (int row = 0; row < files.length; row++) out.writeDouble(column.numbers.get(row));
+				} else {
+					out.writeByte(STRINGS);
+					out.writeInt(column.dictionary.length);
+					for (String value: column.dictionary) string(out, value);
+					for (int row = 0; row < files.length; row++) out.writeInt(column.codes.get(row));
+				}
+			}
+		}
+	}
+
+	public static MetadataCatalog open(Path file) throws TiffProcessorException, IOException {
+
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		try {
+
+			if (buffer.getInt() != MAGIC) throw new TiffProcessorException("Not a metadata catalog: " + file);
+			int version = buffer.getInt();
+			if (version != VERSION) throw new TiffProcessorException("Unsupported metadata catalog version: " + version);
+
+			String[] files = new String[buffer.getInt()];
+			List<Column> columns = new ArrayList<Column>();
+			for (int i = buffer.getInt(); i > 0; i--) columns.add(null);
+
+			for (int i = 0; i < files.length; i++) files[i] = string(buffer);
+			for (int i = 0; i < columns.size(); i++) {
+				Tag tag = TiffInputStream.tag(buffer.getShort() & 0xFFFF);
+				if (buffer.get() == NUMBERS) {
+					columns.set(i, new Column(tag, view(buffer, Double.BYTES*files.length).asDoubleBuffer()));
+				} else {
+					String[] dictionary = new String[buffer.getInt()];
+					for (int j = 0; j < dictionary.length; j++) dictionary[j] = string(buffer);
+					columns.set(i, new Column(tag, view(buffer, Integer.BYTES*files.length).asIntBuffer(), dictionary));
+				}
+			}
+
+			return new MetadataCatalog(files, columns);
+
+		} catch (RuntimeException e) {
+
+			throw new TiffProcessorException("Corrupt metadata catalog: " + file, e);
+
+		}
+
+	}
+
+	// The next length bytes of buffer, which is moved past them.
+	private static ByteBuffer view(ByteBuffer buffer, int length) {
+		ByteBuffer view = buffer.slice();
+		view.limit(length);
+		buffer.position(buffer.position() + length);
+		return view;
+	}
+
+	private static void string(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String string(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+}
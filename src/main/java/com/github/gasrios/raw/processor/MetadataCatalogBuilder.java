@@ -0,0 +1,251 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.processor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import com.github.gasrios.raw.data.ImageFileDirectory;
+import com.github.gasrios.raw.data.Tag;
+import com.github.gasrios.raw.data.TiffEventListener;
+import com.github.gasrios.raw.data.TiffEventParser;
+import com.github.gasrios.raw.io.TiffInputStream;
+import com.github.gasrios.raw.lang.RationalArray;
+import com.github.gasrios.raw.lang.TiffProcessorException;
+
+/*
+ * Builds a com.github.gasrios.raw.processor.MetadataCatalog out of many files at once, taking the values of a few tags (Make,
+ * Model, ExposureTime, ISOSpeedRatings...) from each of them.
+ *
+ * Files are read by com.github.gasrios.raw.data.TiffEventParser, so values of other tags are skipped over rather than read, no
+ * IFD tree is built, and parsing a file stops as soon as all values have been found. Values are taken from the first IFD
+ * holding them, in the order the parser visits IFDs; MakerNote and Interoperability IFDs are not visited.
+ *
+ * Numeric columns take numbers, RATIONAL and SRATIONAL included, and the first element of arrays (ISOSpeedRatings, for
+ * example, may hold several). String columns take ASCII values, UNDEFINED ones read as ASCII (ExifVersion) and numbers.
+ *
+ * Files are parsed by a fixed number of threads, one per available processor unless told otherwise, each taking the next
+ * file not yet taken. Values of each file go straight into the columns once it is done. Strings get their codes once all files
+ * are done, in the order of the files given, so the same files always get the same codes. Files that fail are left out of the
+ * catalog: build() puts whatever was thrown for each of them in the map it is given, once all files are done, so the map needs
+ * not be thread safe.
+ */
+
+public final class MetadataCatalogBuilder {
+
+	private final List<Tag> numbers, strings;
+	private final int parallelism;
+
+	// Column of each tag, among numeric or string ones.
+	private final Map<Tag, Integer> numberColumns = new HashMap<Tag, Integer>(), stringColumns = new HashMap<Tag, Integer>();
+
+	public MetadataCatalogBuilder(List<Tag> numbers, List<Tag> strings) {
+		this(numbers, strings, Runtime.getRuntime().availableProcessors());
+	}
+
+	public MetadataCatalogBuilder(List<Tag> numbers, List<Tag> strings, int parallelism) {
+		if (parallelism <= 0) throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+		this.numbers = new ArrayList<Tag>(numbers);
+		this.strings = new ArrayList<Tag>(strings);
+		this.parallelism = parallelism;
+		columns(this.numbers, numberColumns);
+		columns(this.strings, stringColumns);
+	}
+
+	private void columns(List<Tag> tags, Map<Tag, Integer> columns) {
+		for (int i = 0; i < tags.size(); i++) {
+			Tag tag = tags.get(i);
+			// Other scopes belong to IFDs that are not visited.
+			if (tag.getClass() != Tag.class) throw new IllegalArgumentException("Not a TIFF, Exif or DNG tag: " + tag);
+			if (numberColumns.containsKey(tag) || stringColumns.containsKey(tag)) throw new IllegalArgumentException("Tag given twice: " + tag);
+			columns.put(tag, i);
+		}
+	}
+
+	// All regular files in directory, not descending into subdirectories.
+	public MetadataCatalog build(Path directory, Map<Path, Exception> failures) throws IOException, InterruptedException {
+		try (Stream<Path> paths = Files.list(directory)) {
+			return build(paths.filter(Files::isRegularFile), failures);
+		}
+	}
+
+	public MetadataCatalog build(Stream<Path> paths, Map<Path, Exception> failures) throws InterruptedException {
+
+		Path[] files = paths.toArray(Path[]::new);
+
+		double[][] numbers = new double[this.numbers.size()][files.length];
+		String[][] strings = new String[this.strings.size()][files.length];
+		boolean[] failed = new boolean[files.length];
+		// Workers record failures here, and the map given only gets them once workers are done.
+		Map<Path, Exception> errors = new ConcurrentHashMap<Path, Exception>();
+
+		AtomicInteger next = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+		try {
+
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < parallelism; i++) futures.add(workers.submit(() -> {
+				for (int row; !Thread.currentThread().isInterrupted() && (row = next.getAndIncrement()) < files.length;) {
+					try {
+						Scan scan = scan(files[row]);
+						for (int column = 0; column < numbers.length; column++) numbers[column][row] = scan.numbers[column];
+						for (int column = 0; column < strings.length; column++) strings[column][row] = scan.strings[column];
+					} catch (Exception e) {
+						failed[row] = true;
+						errors.put(files[row], e);
+					}
+				}
+			}));
+
+			// Writes made by workers are seen here once their futures are done.
+			for (Future<?> future: futures) try {
+				future.get();
+			} catch (ExecutionException e) {
+				// Exceptions are caught for each file, so this should be an Error.
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				throw (Error) e.getCause();
+			}
+
+		} finally {
+			workers.shutdownNow();
+		}
+
+		failures.putAll(errors);
+
+		// Leave failed files out.
+		int size = 0;
+		String[] names = new String[files.length];
+		int[][] codes = new int[strings.length][files.length];
+		List<Dictionary> dictionaries = new ArrayList<Dictionary>();
+		for (int i = 0; i < strings.length; i++) dictionaries.add(new Dictionary());
+		for (int row = 0; row < files.length; row++) if (!failed[row]) {
+			names[size] = files[row].toString();
+			for (double[] column: numbers) column[size] = column[row];
+			for (int column = 0; column < strings.length; column++)
+				codes[column][size] = strings[column][row] == null? -1 : dictionaries.get(column).code(strings[column][row]);
+			size++;
+		}
+
+		List<MetadataCatalog.Column> columns = new ArrayList<MetadataCatalog.Column>();
+		for (int i = 0; i < numbers.length; i++)
+			columns.add(new MetadataCatalog.Column(this.numbers.get(i), DoubleBuffer.wrap(Arrays.copyOf(numbers[i], size))));
+		for (int i = 0; i < codes.length; i++) columns.add(new MetadataCatalog.Column(
+			this.strings.get(i), IntBuffer.wrap(Arrays.copyOf(codes[i], size)), dictionaries.get(i).values()
+		));
+		return new MetadataCatalog(Arrays.copyOf(names, size), columns);
+
+	}
+
+	// Strings get codes in the order they are first seen.
+	private static final class Dictionary {
+
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+		private int code(String value) { return codes.computeIfAbsent(value, key -> codes.size()); }
+
+		private String[] values() {
+			String[] values = new String[codes.size()];
+			for (Map.Entry<String, Integer> entry: codes.entrySet()) values[entry.getValue()] = entry.getKey();
+			return values;
+		}
+
+	}
+
+	private Scan scan(Path file) throws TiffProcessorException, IOException {
+		try (InputStream in = new FileInputStream(file.toFile())) {
+			Scan scan = new Scan();
+			new TiffEventParser(new TiffInputStream(in), scan).parse();
+			return scan;
+		}
+	}
+
+	// Values of one file.
+	private final class Scan implements TiffEventListener {
+
+		private final double[] numbers = new double[MetadataCatalogBuilder.this.numbers.size()];
+		private final String[] strings = new String[MetadataCatalogBuilder.this.strings.size()];
+		private int missing = numbers.length + strings.length;
+
+		private Scan() { Arrays.fill(numbers, Double.NaN); }
+
+		@Override public Control startIfd(Tag pointer, int depth) { return Control.CONTINUE; }
+
+		// Wanted and not found yet.
+		@Override public boolean retain(Tag tag) {
+			Integer column = numberColumns.get(tag);
+			if (column != null) return Double.isNaN(numbers[column]);
+			column = stringColumns.get(tag);
+			return column != null && strings[column] == null;
+		}
+
+		@Override public Control tag(Tag tag, Object value) {
+
+			if (tag == Tag.MakerNote || tag == Tag.Interoperability) return Control.SKIP_SUBTREE;
+			if (!retain(tag)) return Control.CONTINUE;
+
+			if (numberColumns.containsKey(tag)) numbers[numberColumns.get(tag)] = number(value);
+			else strings[stringColumns.get(tag)] = string(value);
+			// Values of the wrong type count as missing.
+			if (retain(tag)) return Control.CONTINUE;
+			return --missing == 0? Control.STOP : Control.CONTINUE;
+
+		}
+
+		@Override public Control xmp(Map<String, String> xmp) { return Control.CONTINUE; }
+
+		@Override public void endIfd(ImageFileDirectory ifd) {}
+
+		@Override public void end() {}
+
+	}
+
+	// NaN for values that are not numbers.
+	private static double number(Object value) {
+		if (value instanceof Number) return ((Number) value).doubleValue();
+		if (value instanceof RationalArray) return ((RationalArray) value).length() == 0? Double.NaN : ((RationalArray) value).doubleValue(0);
+		if (value instanceof Number[]) return ((Number[]) value).length == 0? Double.NaN : ((Number[]) value)[0].doubleValue();
+		if (value instanceof int[]) return ((int[]) value).length == 0? Double.NaN : ((int[]) value)[0];
+		if (value instanceof long[]) return ((long[]) value).length == 0? Double.NaN : ((long[]) value)[0];
+		if (value instanceof short[]) return ((short[]) value).length == 0? Double.NaN : ((short[]) value)[0];
+		if (value instanceof float[]) return ((float[]) value).length == 0? Double.NaN : ((float[]) value)[0];
+		if (value instanceof double[]) return ((double[]) value).length == 0? Double.NaN : ((double[]) value)[0];
+		return Double.NaN;
+	}
+
+	// Null for values that are not strings.
+	private static String string(Object value) {
+		if (value instanceof String) return (String) value;
+		if (value instanceof byte[]) return new String((byte[]) value, StandardCharsets.US_ASCII).trim();
+		if (value instanceof Number) return value.toString();
+		return null;
+	}
+
+}
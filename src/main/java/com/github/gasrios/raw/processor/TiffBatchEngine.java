@@ -0,0 +1,155 @@
+/*
+ * © 2018 Guilherme Rios All Rights Reserved
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If not, see http://www.gnu.org/licenses/.
+ */
+
+package com.github.gasrios.raw.processor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import com.github.gasrios.raw.data.ImageFileDirectoryCache;
+import com.github.gasrios.raw.lang.CancellationToken;
+
+/*
+ * Runs one com.github.gasrios.raw.processor.TiffProcessorEngine per file over many files at once.
+ *
+ * Each file goes through two stages:
+ *
+ * 1. Loading, which creates the engine and so reads all IFDs, those pointed to by other IFDs by tasks of their own. It mostly
+ *    waits on I/O, so it runs on a cached thread pool;
+ *
+ * 2. Processing, which calls TiffProcessorEngine.run() and is mostly CPU bound, so it runs on a fixed thread pool, with one
+ *    thread per available processor unless told otherwise.
+ *
+ * A file is in flight from the moment its loading starts until its processing ends, and at most twice as many files as there
+ * are processing threads are in flight at once. With all processing threads busy, this leaves as many files being loaded, or
+ * waiting to be processed, ready to take their place.
+ *
+ * Before processing starts, the peak memory needed to process the file is estimated from its IFDs (see
+ * com.github.gasrios.raw.processor.MemoryEstimator) and reserved from a budget given by the caller. Files that do not fit wait
+ * for others to finish, so a few huge files arriving together do not exhaust the heap.
+ *
+ * A new com.github.gasrios.raw.processor.TiffProcessor is asked for every file. Files that fail do not stop the batch: run()
+ * returns whatever was thrown for each of them.
+ */
+
+public final class TiffBatchEngine {
+
+	private final Function<Path, ? extends TiffProcessor> listeners;
+	private final long memoryBudget;
+	private final int parallelism;
+	private final MemoryEstimator estimator;
+
+	private ImageFileDirectoryCache cache = null;
+
+	public TiffBatchEngine(Function<Path, ? extends TiffProcessor> listeners, long memoryBudget) {
+		this(listeners, memoryBudget, Runtime.getRuntime().availableProcessors(), new MemoryEstimator());
+	}
+
+	// estimator must match how listeners process files: storage of the converted image, whether it gets rendered, etc.
+	public TiffBatchEngine(
+		Function<Path, ? extends TiffProcessor> listeners, long memoryBudget, int parallelism, MemoryEstimator estimator
+	) {
+		if (parallelism <= 0) throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+		this.listeners = listeners;
+		this.memoryBudget = memoryBudget;
+		this.parallelism = parallelism;
+		this.estimator = estimator;
+	}
+
+	// IFDs of files already seen are read from cache instead of being parsed again. See TiffProcessorEngine.
+	public void setCache(ImageFileDirectoryCache cache) { this.cache = cache; }
+
+	// All regular files in directory, not descending into subdirectories.
+	public Map<Path, Exception> run(Path directory) throws IOException, InterruptedException {
+		try (Stream<Path> paths = Files.list(directory)) {
+			return run(paths.filter(Files::isRegularFile));
+		}
+	}
+
+	public Map<Path, Exception> run(Stream<Path> paths) throws InterruptedException {
+
+		ExecutorService loaders = Executors.newCachedThreadPool(), processors = Executors.newFixedThreadPool(parallelism);
+		// Released once the file is done with, not when it is handed to processors. See class comment.
+		Semaphore inFlight = new Semaphore(2*parallelism);
+		MemoryBudget budget = new MemoryBudget(memoryBudget);
+		Map<Path, Exception> failures = new ConcurrentHashMap<Path, Exception>();
+		List<Future<?>> files = new ArrayList<Future<?>>();
+
+		try {
+
+			for (Iterator<Path> i = paths.iterator(); i.hasNext();) {
+				Path path = i.next();
+				inFlight.acquire();
+				files.add(loaders.submit(() -> {
+					try {
+						process(path, loaders, processors, budget);
+					} catch (Exception e) {
+						failures.put(path, e);
+					} finally {
+						inFlight.release();
+					}
+				}));
+			}
+
+			for (Future<?> file: files) try {
+				file.get();
+			} catch (ExecutionException e) {
+				// Anything but an Error is caught, and recorded, by the task itself.
+				throw (Error) e.getCause();
+			}
+
+		} finally {
+
+			loaders.shutdownNow();
+			processors.shutdownNow();
+
+		}
+
+		return failures;
+
+	}
+
+	private void process(Path path, ExecutorService loaders, ExecutorService processors, MemoryBudget budget) throws Exception {
+		try (InputStream in = new FileInputStream(path.toFile())) {
+			TiffProcessorEngine engine = new TiffProcessorEngine(in, listeners.apply(path), new CancellationToken(), cache, path, loaders);
+			long footprint = estimator.estimate(engine.getImageFileDirectory()).getPeak();
+			budget.acquire(footprint);
+			try {
+				processors.submit(() -> {
+					engine.run();
+					return null;
+				}).get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Error) throw (Error) e.getCause();
+				throw (Exception) e.getCause();
+			} finally {
+				budget.release(footprint);
+			}
+		}
+	}
+
+}
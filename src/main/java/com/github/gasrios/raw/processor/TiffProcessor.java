@@ -41,49 +41,73 @@ import com.github.gasrios.raw.lang.TiffProcessorException;
  * a first IFD but the contrary is not true.
  *
  * Calling order of "end()" methods follows the opposite rule "more generic first" to provide proper nesting.
+ *
+ * All callbacks but end() return a com.github.gasrios.raw.processor.Control, so implementations can avoid visiting, and
+ * loading, parts of the file they do not care about:
+ *
+ * - From IFD callbacks, SKIP_SUBTREE skips the tags of the IFD and every IFD it points to, but not the IFDs chained to it;
+ * - From pointer(), SKIP_SUBTREE skips the IFD (or XMP data) the tag points to;
+ * - From tag(), SKIP_SUBTREE skips the remaining tags of the IFD and every IFD it points to;
+ * - From xmp() and xmpTag(), SKIP_SUBTREE skips the remaining calls to xmpTag().
+ *
+ * Skipped IFDs are not even read from the file, and skipped XMP data is not parsed. XMP packets are small, and still read, in
+ * one go, along with the IFD holding them. See com.github.gasrios.raw.data.ImageFileDirectoryLoader.
  */
 
 public interface TiffProcessor {
 
 	// Generic callback called when any IFD is available.
-	void ifd(ImageFileDirectory ifd) throws TiffProcessorException;
+	Control ifd(ImageFileDirectory ifd) throws TiffProcessorException;
 
 	// Called for the first IFD if it has NewSubFileType = 1.
-	void thumbnailIfd(ImageFileDirectory ifd) throws TiffProcessorException;
+	Control thumbnailIfd(ImageFileDirectory ifd) throws TiffProcessorException;
 
 	/*
 	 * First IFD callback. Needed because some generic information (tags "UniqueCameraModel" and "LensInfo" for example) and
 	 * information needed to process the high resolution raw image (calibration illuminant and color matrixes, among many
 	 * others) are stored here, even if the image itself is inside another IFD.
 	 */
-	void firstIfd(ImageFileDirectory ifd) throws TiffProcessorException;
+	Control firstIfd(ImageFileDirectory ifd) throws TiffProcessorException;
 
 	// Called if this IFD has NewSubFileType = 0.
-	void highResolutionIfd(ImageFileDirectory ifd) throws TiffProcessorException;
+	Control highResolutionIfd(ImageFileDirectory ifd) throws TiffProcessorException;
 
 	// Called if this IFD has NewSubFileType = 1.
-	void previewIfd(ImageFileDirectory ifd) throws TiffProcessorException;
+	Control previewIfd(ImageFileDirectory ifd) throws TiffProcessorException;
 
 	// Called for an Exif IFD if it exists.
-	void exifIfd(ImageFileDirectory ifd) throws TiffProcessorException;
+	Control exifIfd(ImageFileDirectory ifd) throws TiffProcessorException;
 
 	// Called for an Interoperability IFD if it exists.
-	void interoperabilityIfd(ImageFileDirectory ifd) throws TiffProcessorException;
+	Control interoperabilityIfd(ImageFileDirectory ifd) throws TiffProcessorException;
 
 	// Called for an Interoperability IFD if it exists.
-	void makerNoteIfd(ImageFileDirectory ifd) throws TiffProcessorException;
+	Control makerNoteIfd(ImageFileDirectory ifd) throws TiffProcessorException;
 
 	// Called if an IFD chain exists.
-	void nextIfd(ImageFileDirectory ifd) throws TiffProcessorException;
+	Control nextIfd(ImageFileDirectory ifd) throws TiffProcessorException;
 
-	// Called for all tags except XMP (see below).
-	void tag(Tag tag, Object value) throws TiffProcessorException;
+	// Called for all tags but those pointing to other IFDs or holding XMP data. See pointer().
+	Control tag(Tag tag, Object value) throws TiffProcessorException;
+
+	/*
+	 * Called instead of tag() for tags pointing to other IFDs or holding XMP data, listed in
+	 * com.github.gasrios.raw.data.ImageFileDirectoryLoader.POINTERS, with their values as stored in the file (see
+	 * com.github.gasrios.raw.data.ImageFileDirectory.getOffset()), before any of what they point to is loaded.
+	 */
+	Control pointer(Tag tag, Object offset) throws TiffProcessorException;
+
+	/*
+	 * Whether xmp() and xmpTag() are to be called. XMP packets are not parsed for processors that do not want them. See
+	 * com.github.gasrios.raw.data.XmpProperties.
+	 */
+	boolean wantsXmp();
 
 	// Called after parsing XMP content using Adobe's com.adobe.xmp.XMPMetaFactory and populating a java.util.Map.
-	void xmp(Map<String, String> xmp) throws TiffProcessorException;
+	Control xmp(Map<String, String> xmp) throws TiffProcessorException;
 
 	// Called individually for each key in the Map above.
-	void xmpTag(String tag, String value) throws TiffProcessorException;
+	Control xmpTag(String tag, String value) throws TiffProcessorException;
 
 	// Called after all other methods
 	void end() throws TiffProcessorException;
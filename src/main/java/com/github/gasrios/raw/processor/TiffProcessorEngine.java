@@ -14,13 +14,23 @@ package com.github.gasrios.raw.processor;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 
 import com.github.gasrios.raw.data.ImageFileDirectory;
+import com.github.gasrios.raw.data.ImageFileDirectoryCache;
 import com.github.gasrios.raw.data.ImageFileDirectoryLoader;
+import com.github.gasrios.raw.data.RasterChunk;
+import com.github.gasrios.raw.data.RasterPublisher;
 import com.github.gasrios.raw.data.Tag;
+import com.github.gasrios.raw.data.XmpProperties;
 import com.github.gasrios.raw.io.TiffInputStream;
+import com.github.gasrios.raw.lang.CancellationToken;
 import com.github.gasrios.raw.lang.TiffProcessorException;
 import com.github.gasrios.xmp.XMPException;
 
@@ -35,6 +45,20 @@ import com.github.gasrios.xmp.XMPException;
  * TiffProcessorEngine creates an ImageFileDirectory then sweeps across all of its contents, invoking matching methods in
  * TiffProcessor. So by implementing your TiffProcessor you can focus on processing the parts of the file you care about
  * while ignoring everything else.
+ *
+ * Parts of the file a TiffProcessor chooses to skip (see com.github.gasrios.raw.processor.Control) are not even loaded: IFDs
+ * pointed to by other IFDs are only read from the file when visited.
+ *
+ * Memory is given back at fixed points rather than by asking for a garbage collection, which stops every thread of the
+ * process when many files are processed at once:
+ *
+ * - Strip buffers, after each strip is converted, and rows of pixels, after each IFD, are released to a
+ *   com.github.gasrios.raw.lang.ArrayPool to be used for the next ones (see com.github.gasrios.raw.processor.DngProcessor);
+ * - Sensor levels kept for opcodes, one array per sample plane, are released to the pool once the image is converted;
+ * - The IFD tree is dropped once the last IFD is visited, or processing fails, before end() is called.
+ *
+ * XMP packets are only parsed if the TiffProcessor wants them, as told by wantsXmp(), and even then only when properties are
+ * first asked for. See com.github.gasrios.raw.data.XmpProperties.
  */
 
 public final class TiffProcessorEngine {
@@ -42,84 +66,242 @@ public final class TiffProcessorEngine {
 	private ImageFileDirectory ifd;
 	private TiffProcessor listener;
 
+	private CancellationToken cancellation;
+
+	// See store().
+	private final ImageFileDirectoryCache cache;
+
+	// Whether listener does anything with XMP properties, and namespaces it wants, if not all. See setXmpNamespaces().
+	private final boolean xmpWanted;
+	private String[] xmpNamespaces = null;
+
 	public TiffProcessorEngine(InputStream in, TiffProcessor listener) throws TiffProcessorException, IOException, XMPException {
-		ifd = (new ImageFileDirectoryLoader(new TiffInputStream(in))).load();
+		this(in, listener, new CancellationToken());
+	}
+
+	/*
+	 * Processing stops, throwing com.github.gasrios.raw.lang.TiffProcessorCancelledException, once cancellation is cancelled or
+	 * times out. It is checked before each IFD, and by processors for every strip, tile or row they read.
+	 */
+	public TiffProcessorEngine(InputStream in, TiffProcessor listener, CancellationToken cancellation)
+			throws TiffProcessorException, IOException, XMPException {
+		this(in, listener, cancellation, null, null);
+	}
+
+	/*
+	 * IFDs of file, which in reads, are taken from cache if it has them, and put there by run() otherwise, as loaded by then. See
+	 * com.github.gasrios.raw.data.ImageFileDirectoryCache.
+	 */
+	public TiffProcessorEngine(
+		InputStream in, TiffProcessor listener, CancellationToken cancellation, ImageFileDirectoryCache cache, Path file
+	) throws TiffProcessorException, IOException, XMPException {
+		this(in, listener, cancellation, cache, file, null);
+	}
+
+	/*
+	 * Same as above, except IFDs not taken from cache are loaded in full, right away, by tasks given to loader (see
+	 * com.github.gasrios.raw.data.ImageFileDirectoryLoader.load(Executor)), rather than when first visited. cache, and then
+	 * file, may be null, and so may loader.
+	 */
+	public TiffProcessorEngine(
+		InputStream in, TiffProcessor listener, CancellationToken cancellation, ImageFileDirectoryCache cache, Path file,
+		Executor loader
+	) throws TiffProcessorException, IOException, XMPException {
+		TiffInputStream stream = new TiffInputStream(in, cancellation);
+		try {
+			if (cache != null) ifd = cache.load(file, stream, loader);
+			else if (loader != null) ifd = new ImageFileDirectoryLoader(stream).load(loader);
+			else ifd = new ImageFileDirectoryLoader(stream).load();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TiffProcessorException(e);
+		}
 		this.listener = listener;
+		this.cancellation = cancellation;
+		this.cache = cache;
+		xmpWanted = listener.wantsXmp();
 	}
 
-	public void run() throws TiffProcessorException {
+	/*
+	 * Restricts XMP properties given to the listener to those in the namespaces given by their prefixes ("crs", "dc"). Packets
+	 * holding none of them are not parsed at all.
+	 */
+	public void setXmpNamespaces(String... prefixes) { xmpNamespaces = prefixes; }
+
+	/*
+	 * See getRaster(). Subscribers may come from any thread, so the list is guarded by itself. rasterClosed, set once publishing
+	 * starts or fails, tells subscribers coming too late why they get nothing.
+	 */
+	private final List<Flow.Subscriber<? super RasterChunk>> rasterSubscribers = new ArrayList<Flow.Subscriber<? super RasterChunk>>();
+	private Executor rasterExecutor = ForkJoinPool.commonPool();
+	private String rasterClosed = null;
 
-		if (ifd.containsKey(Tag.NewSubFileType) && ((long) ifd.get(Tag.NewSubFileType)) == 1) listener.thumbnailIfd(ifd);
-		listener.firstIfd(ifd);
-		ifdChain(ifd);
+	/*
+	 * Strips, or tiles, of the high resolution image (NewSubFileType = 0), as they are stored in the file. Subscribers must
+	 * subscribe before run() is called. Once the first high resolution IFD has been visited, its parts are published to them
+	 * (see com.github.gasrios.raw.data.RasterPublisher) and run() goes on when all of them have been read: reading keeps pace
+	 * with the slowest subscriber. Subscribers get onError() if the file has no such IFD, or processing stops before it, and
+	 * right away if they subscribe once publishing has started or failed.
+	 */
+	public Flow.Publisher<RasterChunk> getRaster() { return this::subscribeRaster; }
 
-		// Does not seem to make much of a difference in practice, but just in case let's try and free some memory here.
-		ifd = null;
-		System.gc();
+	private void subscribeRaster(Flow.Subscriber<? super RasterChunk> subscriber) {
+		String closed;
+		synchronized (rasterSubscribers) {
+			if ((closed = rasterClosed) == null) rasterSubscribers.add(subscriber);
+		}
+		if (closed != null) rejectRaster(subscriber, closed);
+	}
+
+	// Executor delivering parts to subscribers of getRaster(). Defaults to java.util.concurrent.ForkJoinPool.commonPool().
+	public void setRasterExecutor(Executor executor) { rasterExecutor = executor; }
+
+	// The IFD tree as loaded, for inspection before run(), which drops it.
+	public ImageFileDirectory getImageFileDirectory() { return ifd; }
+
+	public void run() throws TiffProcessorException {
+
+		try {
+			cancellation.check();
+			Control control = Control.CONTINUE;
+			if (ifd.containsKey(Tag.NewSubFileType) && ((long) ifd.get(Tag.NewSubFileType)) == 1) control = listener.thumbnailIfd(ifd);
+			control = control.and(listener.firstIfd(ifd));
+			ifdChain(ifd, control);
+			store();
+		} finally {
+			ifd = null;
+			failRaster();
+		}
 		listener.end();
 
 	}
 
-	private void ifdChain(ImageFileDirectory ifd) throws TiffProcessorException {
-		ifd(ifd);
-		ImageFileDirectory nextIfd = ifd;
-		while ((nextIfd = nextIfd.getNext()) != null) {
-			listener.nextIfd(nextIfd);
-			ifd(nextIfd);
+	// Only the IFDs the listener wanted get cached, so the next processors do not load the others either.
+	private void store() throws TiffProcessorException {
+		if (cache != null) try {
+			cache.store(ifd);
+		} catch (IOException e) {
+			throw new TiffProcessorException(e);
 		}
 	}
 
-	private void ifd(ImageFileDirectory ifd) throws TiffProcessorException {
+	// Set once any callback returns Control.STOP.
+	private boolean stopped = false;
+
+	private boolean stop(Control control) { return stopped |= control == Control.STOP; }
+
+	private void ifdChain(ImageFileDirectory ifd, Control control) throws TiffProcessorException {
+		ifd(ifd, control);
+		ImageFileDirectory nextIfd = ifd;
+		while (!stopped && (nextIfd = nextIfd.getNext()) != null) ifd(nextIfd, listener.nextIfd(nextIfd));
+	}
+
+	private void ifd(ImageFileDirectory ifd, Control control) throws TiffProcessorException {
+		if (stop(control)) return;
+		cancellation.check();
 		if (ifd.containsKey(Tag.NewSubFileType))
-			if (((long) ifd.get(Tag.NewSubFileType)) == 0) listener.highResolutionIfd(ifd);
-			else if (((long) ifd.get(Tag.NewSubFileType)) == 1) listener.previewIfd(ifd);
-		tags(ifd);
+			if (((long) ifd.get(Tag.NewSubFileType)) == 0) {
+				publishRaster(ifd);
+				control = control.and(listener.highResolutionIfd(ifd));
+			}
+			else if (((long) ifd.get(Tag.NewSubFileType)) == 1) control = control.and(listener.previewIfd(ifd));
+		tags(ifd, control);
+	}
+
+	private void publishRaster(ImageFileDirectory ifd) throws TiffProcessorException {
+		List<Flow.Subscriber<? super RasterChunk>> subscribers = closeRaster("Subscribed after the high resolution image was reached");
+		if (subscribers.isEmpty()) return;
+		try (RasterPublisher publisher = new RasterPublisher(ifd, rasterExecutor)) {
+			for (Flow.Subscriber<? super RasterChunk> subscriber: subscribers) publisher.subscribe(subscriber);
+			publisher.start();
+			publisher.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TiffProcessorException(e);
+		}
+	}
+
+	// Subscribers of getRaster() are told when there is nothing to publish.
+	private void failRaster() {
+		for (Flow.Subscriber<? super RasterChunk> subscriber: closeRaster("No high resolution image published"))
+			rejectRaster(subscriber, "No high resolution image published");
+	}
+
+	// Subscribers so far, none if publishing already started or failed. Those coming later are rejected with the reason given.
+	private List<Flow.Subscriber<? super RasterChunk>> closeRaster(String reason) {
+		synchronized (rasterSubscribers) {
+			if (rasterClosed != null) return new ArrayList<Flow.Subscriber<? super RasterChunk>>();
+			rasterClosed = reason;
+			List<Flow.Subscriber<? super RasterChunk>> subscribers = new ArrayList<Flow.Subscriber<? super RasterChunk>>(rasterSubscribers);
+			rasterSubscribers.clear();
+			return subscribers;
+		}
+	}
+
+	// See Reactive Streams 1.0.2, rule 1.9: onSubscribe() comes first, even for subscribers about to fail.
+	private static void rejectRaster(Flow.Subscriber<? super RasterChunk> subscriber, String reason) {
+		subscriber.onSubscribe(new Flow.Subscription() {
+			@Override public void request(long n) {}
+			@Override public void cancel() {}
+		});
+		subscriber.onError(new TiffProcessorException(reason));
 	}
 
 	@SuppressWarnings("unchecked")
-	private void tags(ImageFileDirectory ifd) throws TiffProcessorException {
+	private void tags(ImageFileDirectory ifd, Control control) throws TiffProcessorException {
 
-		listener.ifd(ifd);
+		if (stop(control = control.and(listener.ifd(ifd))) || control == Control.SKIP_SUBTREE) return;
 
-		for (Tag tag: ifd.keySet())
-			if (tag != Tag.SubIFDs && tag != Tag.ExifIFD && tag != Tag.XMP && tag != Tag.Interoperability && tag != Tag.MakerNote)
-				listener.tag(tag, ifd.get(tag));
+		// Tags in ImageFileDirectoryLoader.POINTERS whose IFDs (or XMP data) the listener wants.
+		List<Tag> pointers = new ArrayList<Tag>();
 
-		if (ifd.containsKey(Tag.SubIFDs) && !((List<ImageFileDirectory>) ifd.get(Tag.SubIFDs)).isEmpty())
-			ifds((List<ImageFileDirectory>) ifd.get(Tag.SubIFDs));
+		for (Tag tag: ifd.keySet()) {
+			if (ImageFileDirectoryLoader.POINTERS.contains(tag)) {
+				control = listener.pointer(tag, ifd.getOffset(tag));
+				if (stop(control)) return;
+				if (control != Control.SKIP_SUBTREE && (tag != Tag.XMP || xmpWanted)) pointers.add(tag);
+				continue;
+			}
+			control = listener.tag(tag, ifd.get(tag));
+			if (stop(control) || control == Control.SKIP_SUBTREE) return;
+		}
 
-		if (ifd.containsKey(Tag.ExifIFD)) exif((ImageFileDirectory) ifd.get(Tag.ExifIFD));
+		if (pointers.contains(Tag.SubIFDs)) ifds((List<ImageFileDirectory>) ifd.get(Tag.SubIFDs));
 
-		if (ifd.containsKey(Tag.XMP)) xmp((Map<String, String>) ifd.get(Tag.XMP));
+		if (pointers.contains(Tag.ExifIFD) && !stopped) exif((ImageFileDirectory) ifd.get(Tag.ExifIFD));
 
-		if (ifd.containsKey(Tag.Interoperability)) interoperability((ImageFileDirectory) ifd.get(Tag.Interoperability));
+		if (pointers.contains(Tag.XMP) && !stopped) xmp((Map<String, String>) ifd.get(Tag.XMP));
 
-		if (ifd.containsKey(Tag.MakerNote)) makerNote((ImageFileDirectory) ifd.get(Tag.MakerNote));
+		if (pointers.contains(Tag.Interoperability) && !stopped) interoperability((ImageFileDirectory) ifd.get(Tag.Interoperability));
+
+		if (pointers.contains(Tag.MakerNote) && !stopped) makerNote((ImageFileDirectory) ifd.get(Tag.MakerNote));
 
 	}
 
 	private void ifds(List<ImageFileDirectory> ifds) throws TiffProcessorException {
-		for (ImageFileDirectory ifd: ifds) ifdChain(ifd);
+		for (ImageFileDirectory ifd: ifds) if (!stopped) ifdChain(ifd, Control.CONTINUE);
 	}
 
 	private void exif(ImageFileDirectory ifd) throws TiffProcessorException {
-		listener.exifIfd(ifd);
-		ifdChain(ifd);
+		ifdChain(ifd, listener.exifIfd(ifd));
 	}
 
 	private void interoperability(ImageFileDirectory ifd) throws TiffProcessorException {
-		listener.interoperabilityIfd(ifd);
-		ifdChain(ifd);
+		ifdChain(ifd, listener.interoperabilityIfd(ifd));
 	}
 
 	private void makerNote(ImageFileDirectory ifd) throws TiffProcessorException {
-		listener.makerNoteIfd(ifd);
-		ifdChain(ifd);
+		ifdChain(ifd, listener.makerNoteIfd(ifd));
 	}
 
 	private void xmp(Map<String, String> xmp) throws TiffProcessorException {
-		listener.xmp(xmp);
-		for (String tag: xmp.keySet()) listener.xmpTag(tag, xmp.get(tag));
+		if (xmpNamespaces != null && xmp instanceof XmpProperties) xmp = ((XmpProperties) xmp).filter(xmpNamespaces);
+		Control control = listener.xmp(xmp);
+		if (stop(control) || control == Control.SKIP_SUBTREE) return;
+		for (String tag: xmp.keySet()) {
+			control = listener.xmpTag(tag, xmp.get(tag));
+			if (stop(control) || control == Control.SKIP_SUBTREE) return;
+		}
 	}
 
 }
\ No newline at end of file
@@ -14,6 +14,7 @@ package com.github.gasrios.raw.swing;
 
 import java.awt.image.BufferedImage;
 
+import com.github.gasrios.raw.formats.ImageBuffer;
 import com.github.gasrios.raw.formats.ImageCIEXYZ;
 
 /*
@@ -39,21 +40,48 @@ public class Image extends BufferedImage {
 	public Image(ImageCIEXYZ image, Orientation orientation) {
 
 		super(
-			orientation == Orientation.HORIZONTAL? image.getImage().length : image.getImage()[0].length,
-			orientation == Orientation.HORIZONTAL? image.getImage()[0].length : image.getImage().length,
+			orientation == Orientation.HORIZONTAL? image.getBuffer().getWidth() : image.getBuffer().getLength(),
+			orientation == Orientation.HORIZONTAL? image.getBuffer().getLength() : image.getBuffer().getWidth(),
 			// sRGB
 			BufferedImage.TYPE_INT_RGB
 		);
 
-		double [][][] im = image.getImage();
+		ImageBuffer buffer = image.getBuffer();
 
-		if (orientation == Orientation.HORIZONTAL)
-			for (int i = 0; i < getWidth(); i++) for (int j = 0; j < getHeight(); j++) setRGB(i, j, image.toSRGB(im[i][j]));
-		else
-			for (int i = 0; i < getWidth(); i++) for (int j = 0; j < getHeight(); j++) setRGB(i, getHeight()-(j+1), image.toSRGB(im[j][i]));
+		// One row of the displayed image at a time, in planar layout. See com.github.gasrios.raw.lang.Kernels.
+		int width = getWidth();
+		int[] rgb = new int[width];
 
-	}
+		if (image.isSinglePrecision()) {
+			float[] p0 = new float[width], p1 = new float[width], p2 = new float[width];
+			for (int j = 0; j < getHeight(); j++) {
+				if (orientation == Orientation.HORIZONTAL)
+					buffer.getRow(j, p0, p1, p2);
+				else for (int i = 0; i < width; i++) {
+					p0[i] = (float) buffer.get(j, i, 0);
+					p1[i] = (float) buffer.get(j, i, 1);
+					p2[i] = (float) buffer.get(j, i, 2);
+				}
+				image.toSRGB(p0, p1, p2, width, rgb);
+				setRGB(0, orientation == Orientation.HORIZONTAL? j : getHeight()-(j+1), width, 1, rgb, 0, width);
+			}
+			return;
+		}
+
+		double[] p0 = new double[width], p1 = new double[width], p2 = new double[width];
 
-	private synchronized void setRGB(int column, int row, int[] pixel) { setRGB(column, row, (pixel[0] << 16) + (pixel[1] << 8) + pixel[2]); }
+		for (int j = 0; j < getHeight(); j++) {
+			if (orientation == Orientation.HORIZONTAL)
+				buffer.getRow(j, p0, p1, p2);
+			else for (int i = 0; i < width; i++) {
+				p0[i] = buffer.get(j, i, 0);
+				p1[i] = buffer.get(j, i, 1);
+				p2[i] = buffer.get(j, i, 2);
+			}
+			image.toSRGB(p0, p1, p2, width, rgb);
+			setRGB(0, orientation == Orientation.HORIZONTAL? j : getHeight()-(j+1), width, 1, rgb, 0, width);
+		}
+
+	}
 
 }
\ No newline at end of file